@@ -0,0 +1,24 @@
+package ch.fhnw.imvs.smartcard;
+
+/**
+ * Processes the Command APDUs of one or more instructions on the card side,
+ * see {@link CardSimulator#register(byte, APDUHandler)}.
+ */
+public interface APDUHandler {
+
+	/**
+	 * Processes a Command APDU. May be called concurrently for different
+	 * sessions, but never concurrently for the same session. While a command
+	 * is running in the session, see {@link CardSession#startPending()},
+	 * handlers are not called for it.
+	 *
+	 * @param session
+	 *            The session the command was sent in.
+	 * @param command
+	 *            The Command APDU.
+	 * @return The Response APDU. Responses with more Argument Data than fits
+	 *         into a standard Response APDU are split into parcels by the
+	 *         simulator.
+	 */
+	ResponseAPDU handle(CardSession session, CommandAPDU command);
+}
@@ -0,0 +1,297 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import ch.fhnw.imvs.util.BytesTransferConverterUtils;
+
+/**
+ * Reads APDU traces written by {@link APDUTraceWriter}. Traces are usually
+ * read from a memory-mapped file, see {@link #open(Path)}, but any
+ * {@link ByteBuffer} can be used.
+ *
+ * <p>
+ *
+ * The exchanges are read one after the other with {@link #next()}. The
+ * command of the current exchange is available as {@link CommandAPDUView},
+ * the response as slice of the trace; both point directly into the trace and
+ * are reused for every exchange, so nothing is allocated per exchange.
+ *
+ * <p>
+ *
+ * To jump to an exchange by its number, an index of the offsets of all
+ * exchanges can be built once with {@link #buildIndex()}, see
+ * {@link #seek(int)}.
+ *
+ * <p>
+ *
+ * Instances of this class are not thread-safe.
+ */
+public final class APDUTraceReader implements Closeable {
+
+	private static final int HEADER_LENGTH = BytesTransferConverterUtils.HEADER_LENGTH;
+
+	/**
+	 * The trace, positioned at the next exchange
+	 */
+	private final ByteBuffer trace;
+
+	/**
+	 * Start of the trace in <code>trace</code>
+	 */
+	private final int start;
+
+	/**
+	 * Channel the trace was mapped from, null if none
+	 */
+	private final FileChannel channel;
+
+	private final CommandAPDUView command = new CommandAPDUView();
+
+	/**
+	 * Response of the current exchange, null before the first one
+	 */
+	private ByteBuffer response;
+
+	/**
+	 * Number of the current exchange, -1 before the first one
+	 */
+	private int number = -1;
+
+	/**
+	 * Offsets of the exchanges relative to <code>start</code>, null if not
+	 * built
+	 */
+	private int[] index;
+
+	/**
+	 * Number of exchanges in <code>index</code>
+	 */
+	private int size;
+
+	/**
+	 * Creates a reader for the trace between the position and the limit of
+	 * <code>trace</code>. The position and limit of <code>trace</code> are not
+	 * changed.
+	 *
+	 * @param trace
+	 *            The trace.
+	 */
+	public APDUTraceReader(ByteBuffer trace) {
+		this(trace, null);
+	}
+
+	private APDUTraceReader(ByteBuffer trace, FileChannel channel) {
+		this.trace = trace.duplicate();
+		this.start = this.trace.position();
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates a reader for a trace file by mapping it into memory.
+	 *
+	 * @param path
+	 *            The trace file.
+	 * @return The reader.
+	 * @throws IOException
+	 *             If the file can not be mapped, e.g. because it is larger
+	 *             than <code>Integer.MAX_VALUE</code> bytes.
+	 */
+	public static APDUTraceReader open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Trace file too large to be mapped");
+			}
+			return new APDUTraceReader(channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, size), channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Advances to the next exchange.
+	 *
+	 * @return <code>true</code> if there is a next exchange,
+	 *         <code>false</code> at the end of the trace.
+	 * @throws IllegalArgumentException
+	 *             If the trace ends within an exchange.
+	 */
+	public boolean next() {
+		if (!trace.hasRemaining()) {
+			return false;
+		}
+		int commandLength = readHeader();
+		int commandOffset = trace.position();
+		trace.position(commandOffset + commandLength);
+		int responseLength = readHeader();
+		int responseOffset = trace.position();
+		trace.position(responseOffset + responseLength);
+
+		command.wrap(trace, commandOffset, commandLength);
+		ByteBuffer r = trace.duplicate();
+		r.position(responseOffset);
+		r.limit(responseOffset + responseLength);
+		response = r.slice().asReadOnlyBuffer();
+		number++;
+		return true;
+	}
+
+	/**
+	 * Reads a frame header at the position of the trace and checks that the
+	 * frame is complete.
+	 */
+	private int readHeader() {
+		if (trace.remaining() < HEADER_LENGTH) {
+			throw new IllegalArgumentException("Incomplete exchange");
+		}
+		int length = ((trace.get() & 0xFF) << 8) | (trace.get() & 0xFF);
+		if (length > trace.remaining()) {
+			throw new IllegalArgumentException("Incomplete exchange");
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the number of the current exchange.
+	 *
+	 * @return Number of the exchange, starting from zero, -1 before the
+	 *         first call to {@link #next()}.
+	 */
+	public int getNumber() {
+		return number;
+	}
+
+	/**
+	 * Returns the command of the current exchange. The same view is returned
+	 * for every exchange.
+	 *
+	 * @return View on the Command APDU.
+	 * @throws IllegalStateException
+	 *             If there is no current exchange.
+	 */
+	public CommandAPDUView getCommand() {
+		checkCurrent();
+		return command;
+	}
+
+	/**
+	 * Returns the response of the current exchange as read-only slice of the
+	 * trace.
+	 *
+	 * @return The raw Response APDU.
+	 * @throws IllegalStateException
+	 *             If there is no current exchange.
+	 */
+	public ByteBuffer getResponse() {
+		checkCurrent();
+		return response.duplicate();
+	}
+
+	/**
+	 * Returns a copy of the response of the current exchange.
+	 *
+	 * @return The Response APDU.
+	 * @throws IllegalStateException
+	 *             If there is no current exchange.
+	 */
+	public ResponseAPDU getResponseAPDU() {
+		ByteBuffer r = getResponse();
+		byte[] data = new byte[r.remaining()];
+		r.get(data);
+		return ResponseAPDU.adopt(data, data.length);
+	}
+
+	private void checkCurrent() {
+		if (response == null) {
+			throw new IllegalStateException("No current exchange");
+		}
+	}
+
+	/**
+	 * Scans the whole trace once and stores the offsets of all exchanges.
+	 * The current exchange is not changed.
+	 *
+	 * @return The number of exchanges in the trace.
+	 * @throws IllegalArgumentException
+	 *             If the trace ends within an exchange.
+	 */
+	public int buildIndex() {
+		if (index != null) {
+			return size;
+		}
+		int[] offsets = new int[1024];
+		int count = 0;
+		int end = trace.limit();
+		int offset = start;
+		while (offset < end) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			offsets[count++] = offset - start;
+			for (int i = 0; i < 2; i++) {
+				if (end - offset < HEADER_LENGTH) {
+					throw new IllegalArgumentException("Incomplete exchange");
+				}
+				offset += HEADER_LENGTH
+						+ (((trace.get(offset) & 0xFF) << 8) | (trace
+								.get(offset + 1) & 0xFF));
+				if (offset > end) {
+					throw new IllegalArgumentException("Incomplete exchange");
+				}
+			}
+		}
+		index = offsets;
+		size = count;
+		return size;
+	}
+
+	/**
+	 * Returns the number of exchanges in the trace, building the index if
+	 * necessary.
+	 *
+	 * @return Number of exchanges.
+	 */
+	public int size() {
+		return buildIndex();
+	}
+
+	/**
+	 * Positions the reader before the exchange with the given number, so the
+	 * next call to {@link #next()} reads it. Builds the index if necessary.
+	 *
+	 * @param number
+	 *            Number of the exchange, starting from zero. The number of
+	 *            exchanges positions the reader at the end of the trace.
+	 * @throws IndexOutOfBoundsException
+	 *             If there is no such exchange.
+	 */
+	public void seek(int number) {
+		buildIndex();
+		if (number < 0 || number > size) {
+			throw new IndexOutOfBoundsException(String.valueOf(number));
+		}
+		trace.position(number == size ? trace.limit() : start + index[number]);
+		this.number = number - 1;
+		response = null;
+	}
+
+	/**
+	 * Closes the file the trace was mapped from, if any. The mapping itself
+	 * is released by the garbage collector.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import ch.fhnw.imvs.util.BytesTransferConverterUtils;
+
+/**
+ * Writes APDU traces: Sequences of exchanges, each consisting of a Command
+ * APDU and the Response APDU received for it. The trace is a sequence of
+ * frames as written by {@link BytesTransferConverterUtils}, alternating
+ * between command and response, so an exchange is encoded as
+ * <code>len(C) C len(R) R</code> with two byte lengths. Traces are read by
+ * {@link APDUTraceReader}.
+ *
+ * <p>
+ *
+ * The exchanges are collected in a buffer and written to the channel in
+ * large blocks. Instances of this class are not thread-safe.
+ */
+public final class APDUTraceWriter implements Closeable, Flushable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final WritableByteChannel channel;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Number of exchanges written
+	 */
+	private long count;
+
+	/**
+	 * Creates a writer writing to <code>channel</code>.
+	 *
+	 * @param channel
+	 *            The channel to write to.
+	 */
+	public APDUTraceWriter(WritableByteChannel channel) {
+		this.channel = channel;
+		// Room for at least one exchange of maximal length
+		this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE + 2
+				* (BytesTransferConverterUtils.HEADER_LENGTH + BytesTransferConverterUtils.MAXIMUM_LENGTH));
+	}
+
+	/**
+	 * Creates a writer writing to a new file, replacing an existing one.
+	 *
+	 * @param path
+	 *            The file.
+	 * @return The writer.
+	 * @throws IOException
+	 *             If the file can not be created.
+	 */
+	public static APDUTraceWriter create(Path path) throws IOException {
+		return new APDUTraceWriter(FileChannel.open(path,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	/**
+	 * Appends an exchange.
+	 *
+	 * @param command
+	 *            The Command APDU.
+	 * @param response
+	 *            The Response APDU.
+	 * @throws IOException
+	 *             If writing to the channel fails.
+	 */
+	public void write(CommandAPDU command, ResponseAPDU response)
+			throws IOException {
+		byte[] c = command.getRaw();
+		byte[] r = response.getRaw();
+		write(c, 0, c.length, r, 0, r.length);
+	}
+
+	/**
+	 * Appends an exchange given as raw bytes.
+	 *
+	 * @param command
+	 *            Bytearray containing the Command APDU.
+	 * @param commandOffset
+	 *            Start of the Command APDU in <code>command</code>.
+	 * @param commandLength
+	 *            Length of the Command APDU.
+	 * @param response
+	 *            Bytearray containing the Response APDU.
+	 * @param responseOffset
+	 *            Start of the Response APDU in <code>response</code>.
+	 * @param responseLength
+	 *            Length of the Response APDU.
+	 * @throws IllegalArgumentException
+	 *             If an APDU is longer than
+	 *             {@link BytesTransferConverterUtils#MAXIMUM_LENGTH}.
+	 * @throws IOException
+	 *             If writing to the channel fails.
+	 */
+	public void write(byte[] command, int commandOffset, int commandLength,
+			byte[] response, int responseOffset, int responseLength)
+			throws IOException {
+		if (commandLength > BytesTransferConverterUtils.MAXIMUM_LENGTH
+				|| responseLength > BytesTransferConverterUtils.MAXIMUM_LENGTH) {
+			throw new IllegalArgumentException("APDU too long");
+		}
+		if (buffer.remaining() < 2 * BytesTransferConverterUtils.HEADER_LENGTH
+				+ commandLength + responseLength) {
+			flush();
+		}
+		BytesTransferConverterUtils.putHeader(buffer, commandLength);
+		buffer.put(command, commandOffset, commandLength);
+		BytesTransferConverterUtils.putHeader(buffer, responseLength);
+		buffer.put(response, responseOffset, responseLength);
+		count++;
+	}
+
+	/**
+	 * Returns the number of exchanges written.
+	 *
+	 * @return Number of exchanges.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Writes the buffered exchanges to the channel.
+	 */
+	@Override
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the buffered exchanges and closes the channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
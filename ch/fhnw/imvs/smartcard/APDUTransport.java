@@ -0,0 +1,33 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends Command APDUs to a card and receives the Response APDUs,
+ * asynchronously. Commands are processed by the card in the order they were
+ * submitted; the futures are completed in the same order.
+ */
+public interface APDUTransport extends Closeable {
+
+	/**
+	 * Sends a command.
+	 *
+	 * @param command
+	 *            The Command APDU.
+	 * @return Future of the Response APDU, completed exceptionally if the
+	 *         transport fails.
+	 */
+	CompletableFuture<ResponseAPDU> transmit(CommandAPDU command);
+
+	/**
+	 * Sends a batch of independent commands. Transports may send the whole
+	 * batch in a single round trip.
+	 *
+	 * @param commands
+	 *            The Command APDUs.
+	 * @return Future of the Response APDUs, in the order of the commands.
+	 */
+	CompletableFuture<List<ResponseAPDU>> transmitBatch(List<CommandAPDU> commands);
+}
@@ -0,0 +1,194 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A session with a simulated card, see {@link CardSimulator#openSession()}.
+ * Sessions are independent of each other: Each one has its own attributes
+ * for the state of the handlers and its own state for parcelled and pending
+ * responses.
+ */
+public final class CardSession {
+
+	private final long id;
+
+	private final ConcurrentMap<String, Object> attributes = new ConcurrentHashMap<>();
+
+	/**
+	 * Guards the state of this session. The session itself is not used as
+	 * lock, since it is passed to the handlers.
+	 */
+	final Object lock = new Object();
+
+	/**
+	 * Whether a command of this session is being processed, guarded by
+	 * <code>lock</code>
+	 */
+	boolean busy;
+
+	/**
+	 * Commands waiting for the one being processed, guarded by
+	 * <code>lock</code>
+	 */
+	final ArrayDeque<CardSimulator.Turn> turns = new ArrayDeque<>();
+
+	/**
+	 * Response whose parcels are being fetched with
+	 * {@link CommandAPDU#INS_GET_REMAINING_RESULT}, null if none
+	 */
+	ResponseAPDU remaining;
+
+	/**
+	 * Number of the next parcel of <code>remaining</code>
+	 */
+	int nextParcel;
+
+	/**
+	 * Whether a command is running, see
+	 * {@link ResponseAPDU#STATUS_COMMAND_RUNNING}, guarded by
+	 * <code>lock</code>
+	 */
+	private boolean pending;
+
+	/**
+	 * Result of the running command if it has completed, null otherwise
+	 */
+	private ResponseAPDU pendingResult;
+
+	CardSession(long id) {
+		this.id = id;
+	}
+
+	/**
+	 * Returns the identifier of this session, unique within its simulator.
+	 *
+	 * @return The identifier.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns an attribute of this session.
+	 *
+	 * @param name
+	 *            Name of the attribute.
+	 * @return The value, <code>null</code> if not set.
+	 */
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	/**
+	 * Sets an attribute of this session.
+	 *
+	 * @param name
+	 *            Name of the attribute.
+	 * @param value
+	 *            The value, <code>null</code> to remove the attribute.
+	 */
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			attributes.remove(name);
+		} else {
+			attributes.put(name, value);
+		}
+	}
+
+	/**
+	 * Marks a command as running. A handler calls this before answering
+	 * {@link ResponseAPDU#STATUS_COMMAND_RUNNING}; the result is then set
+	 * with {@link #completePending(ResponseAPDU)}, possibly from another
+	 * thread, and fetched by the client with
+	 * {@link CommandAPDU#INS_GET_PENDING_RESULT}. See also
+	 * {@link PendingResultManager}.
+	 *
+	 * @throws IllegalStateException
+	 *             If a command is already running.
+	 */
+	public void startPending() {
+		synchronized (lock) {
+			if (pending) {
+				throw new IllegalStateException("A command is already running");
+			}
+			pending = true;
+			pendingResult = null;
+		}
+	}
+
+	/**
+	 * Sets the result of the running command.
+	 *
+	 * @param result
+	 *            The Response APDU of the command.
+	 * @throws IllegalStateException
+	 *             If no command is running.
+	 */
+	public void completePending(ResponseAPDU result) {
+		synchronized (lock) {
+			if (!pending || pendingResult != null) {
+				throw new IllegalStateException("No command is running");
+			}
+			pendingResult = result;
+		}
+	}
+
+	/**
+	 * Clears the pending state, e.g. if the running command could not be
+	 * started after {@link #startPending()}.
+	 */
+	void abortPending() {
+		synchronized (lock) {
+			pending = false;
+			pendingResult = null;
+		}
+	}
+
+	/**
+	 * Returns whether a command is running or its result was not fetched
+	 * yet.
+	 *
+	 * @return <code>true</code> if a pending result is outstanding.
+	 */
+	public boolean isPending() {
+		synchronized (lock) {
+			return pending;
+		}
+	}
+
+	/**
+	 * Returns whether a command is running and has not completed yet.
+	 */
+	boolean isRunning() {
+		synchronized (lock) {
+			return pending && pendingResult == null;
+		}
+	}
+
+	/**
+	 * Answers {@link CommandAPDU#INS_GET_PENDING_RESULT}: The result if the
+	 * running command has completed, {@link ResponseAPDU#STATUS_COMMAND_RUNNING}
+	 * if it is still running, <code>null</code> if no command is running.
+	 */
+	ResponseAPDU pollPending() {
+		synchronized (lock) {
+			if (!pending) {
+				return null;
+			}
+			if (pendingResult == null) {
+				return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_RUNNING);
+			}
+			ResponseAPDU ret = pendingResult;
+			pending = false;
+			pendingResult = null;
+			return ret;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "CardSession " + id;
+	}
+}
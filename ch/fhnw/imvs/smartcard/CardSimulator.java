@@ -0,0 +1,511 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * In-process simulation of a card. Command APDUs are dispatched to the
+ * {@link APDUHandler} registered for their CLA and INS bytes using a table
+ * lookup; handlers registered for a CLA and INS take precedence over
+ * handlers registered for the INS only.
+ *
+ * <p>
+ *
+ * The simulator serves any number of independent {@link CardSession}s. The
+ * commands of different sessions are processed concurrently, the commands
+ * of one session one after the other. Commands can be processed in the
+ * calling thread with {@link #transmit(CardSession, CommandAPDU)} or on an
+ * executor with {@link #submit(CardSession, CommandAPDU)}. A submitted
+ * command is handed to the executor only when the previous command of its
+ * session has completed, so no thread of the executor waits for a session.
+ *
+ * <p>
+ *
+ * The following instructions are answered by the simulator itself:
+ * <ul>
+ * <li>{@link CommandAPDU#INS_GET_REMAINING_RESULT}: If a handler returns more
+ * Argument Data than fits into one parcel (see
+ * {@link ResponseAPDU#getStandardResponseAPDU(int, int)}), the first parcel
+ * is returned and the following ones are returned for this instruction.
+ * <li>{@link CommandAPDU#INS_GET_PENDING_RESULT}: Returns the result of a
+ * command which answered {@link ResponseAPDU#STATUS_COMMAND_RUNNING}, see
+ * {@link CardSession#startPending()}.
+ * </ul>
+ *
+ * <p>
+ *
+ * If a handler throws a {@link RuntimeException}, the command is answered
+ * with {@link ResponseAPDU#STATUS_UNKNOWN_ERROR} and the exception is passed
+ * to the {@link ErrorListener}, if one is set.
+ *
+ * <p>
+ *
+ * While a command is running in a session (see
+ * {@link CardSession#startPending()}), its other commands are answered with
+ * {@link ResponseAPDU#STATUS_COMMAND_NOT_ALLOWED} without calling a
+ * handler.
+ */
+public final class CardSimulator implements Closeable {
+
+	/**
+	 * Receives the exceptions thrown by handlers.
+	 */
+	public interface ErrorListener {
+
+		/**
+		 * Called in the thread processing the command after a handler threw
+		 * an exception, before the command is answered with
+		 * {@link ResponseAPDU#STATUS_UNKNOWN_ERROR}. Also used for the tasks
+		 * of a {@link PendingResultManager}.
+		 * 
+		 * @param session
+		 *            The session the command was sent in.
+		 * @param command
+		 *            The Command APDU.
+		 * @param e
+		 *            The exception thrown by the handler.
+		 */
+		void handlerFailed(CardSession session, CommandAPDU command,
+				Exception e);
+	}
+
+	/**
+	 * Starts a command waiting in {@link CardSession#turns} when the
+	 * previous command of the session has completed.
+	 */
+	interface Turn {
+
+		/**
+		 * @return <code>false</code> if the command could not be started
+		 *         and the next one has to be started instead.
+		 */
+		boolean start();
+	}
+
+	/**
+	 * Handlers by CLA and INS, index <code>(CLA &lt;&lt; 8) | INS</code>
+	 */
+	private final AtomicReferenceArray<APDUHandler> handlers = new AtomicReferenceArray<>(256 * 256);
+
+	/**
+	 * Handlers by INS for all CLAs
+	 */
+	private final AtomicReferenceArray<APDUHandler> insHandlers = new AtomicReferenceArray<>(256);
+
+	private final AtomicLong sessionIds = new AtomicLong();
+
+	private final ExecutorService executor;
+
+	/**
+	 * Whether <code>executor</code> was created by this simulator
+	 */
+	private final boolean ownExecutor;
+
+	private final int parcelSize;
+
+	private volatile ErrorListener errorListener;
+
+	/**
+	 * Creates a simulator using its own {@link ForkJoinPool} and the default
+	 * parcel size.
+	 */
+	public CardSimulator() {
+		this(new ForkJoinPool(), true, ResponseAPDU.DEFAULT_PARCEL_SIZE);
+	}
+
+	/**
+	 * Creates a simulator.
+	 *
+	 * @param executor
+	 *            Executor for {@link #submit(CardSession, CommandAPDU)}, not
+	 *            shut down by {@link #close()}.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a Response APDU (1
+	 *            to {@value ResponseAPDU#MAXIMUM_PARCEL_SIZE}).
+	 */
+	public CardSimulator(ExecutorService executor, int parcelSize) {
+		this(executor, false, parcelSize);
+	}
+
+	private CardSimulator(ExecutorService executor, boolean ownExecutor,
+			int parcelSize) {
+		if (parcelSize < 1 || parcelSize > ResponseAPDU.MAXIMUM_PARCEL_SIZE) {
+			throw new IllegalArgumentException("Invalid parcel size: "
+					+ parcelSize);
+		}
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.parcelSize = parcelSize;
+	}
+
+	/**
+	 * Registers a handler for an instruction of all classes.
+	 *
+	 * @param ins
+	 *            The INS byte.
+	 * @param handler
+	 *            The handler, <code>null</code> to remove the handler.
+	 * @return This simulator.
+	 */
+	public CardSimulator register(byte ins, APDUHandler handler) {
+		checkIns(ins);
+		insHandlers.set(ins & 0xFF, handler);
+		return this;
+	}
+
+	/**
+	 * Registers a handler for an instruction of one class.
+	 *
+	 * @param cla
+	 *            The CLA byte.
+	 * @param ins
+	 *            The INS byte.
+	 * @param handler
+	 *            The handler, <code>null</code> to remove the handler.
+	 * @return This simulator.
+	 */
+	public CardSimulator register(byte cla, byte ins, APDUHandler handler) {
+		checkIns(ins);
+		handlers.set(((cla & 0xFF) << 8) | (ins & 0xFF), handler);
+		return this;
+	}
+
+	/**
+	 * Sets the listener for exceptions thrown by handlers.
+	 * 
+	 * @param listener
+	 *            The listener, <code>null</code> to ignore the exceptions.
+	 * @return This simulator.
+	 */
+	public CardSimulator setErrorListener(ErrorListener listener) {
+		errorListener = listener;
+		return this;
+	}
+
+	private static void checkIns(byte ins) {
+		if (ins == CommandAPDU.INS_GET_REMAINING_RESULT
+				|| ins == CommandAPDU.INS_GET_PENDING_RESULT) {
+			throw new IllegalArgumentException(
+					"Instruction is answered by the simulator");
+		}
+	}
+
+	/**
+	 * Opens a new session.
+	 *
+	 * @return The session.
+	 */
+	public CardSession openSession() {
+		return new CardSession(sessionIds.incrementAndGet());
+	}
+
+	/**
+	 * Processes a Command APDU in the calling thread. Blocks until the
+	 * commands sent earlier in the same session have completed.
+	 *
+	 * @param session
+	 *            The session to send the command in.
+	 * @param command
+	 *            The Command APDU.
+	 * @return The Response APDU, a standard Response APDU.
+	 */
+	public ResponseAPDU transmit(CardSession session, CommandAPDU command) {
+		final CountDownLatch turn = new CountDownLatch(1);
+		boolean wait;
+		synchronized (session.lock) {
+			wait = session.busy;
+			if (wait) {
+				session.turns.add(new Turn() {
+					@Override
+					public boolean start() {
+						turn.countDown();
+						return true;
+					}
+				});
+			} else {
+				session.busy = true;
+			}
+		}
+		if (wait) {
+			awaitUninterruptibly(turn);
+		}
+		try {
+			return process(session, command);
+		} finally {
+			next(session);
+		}
+	}
+
+	/**
+	 * Processes a Command APDU on the executor of this simulator, after the
+	 * commands sent earlier in the same session have completed.
+	 *
+	 * @param session
+	 *            The session to send the command in.
+	 * @param command
+	 *            The Command APDU.
+	 * @return Future of the Response APDU. It is cancelled if the executor
+	 *         rejects the command after it waited for an earlier one.
+	 * @throws RejectedExecutionException
+	 *             If the executor rejects the command right away.
+	 */
+	public Future<ResponseAPDU> submit(final CardSession session,
+			final CommandAPDU command) {
+		FutureTask<ResponseAPDU> task = new FutureTask<>(
+				new Callable<ResponseAPDU>() {
+					@Override
+					public ResponseAPDU call() {
+						return process(session, command);
+					}
+				});
+		execute(session, task, task);
+		return task;
+	}
+
+	/**
+	 * Runs <code>task</code> on the executor when the previous command of
+	 * the session has completed.
+	 *
+	 * @param future
+	 *            Cancelled if the executor rejects <code>task</code> after
+	 *            it waited for an earlier command.
+	 */
+	private void execute(final CardSession session, final Runnable task,
+			final Future<?> future) {
+		final Runnable command = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					next(session);
+				}
+			}
+		};
+		synchronized (session.lock) {
+			if (session.busy) {
+				session.turns.add(new Turn() {
+					@Override
+					public boolean start() {
+						try {
+							executor.execute(command);
+							return true;
+						} catch (RejectedExecutionException e) {
+							future.cancel(false);
+							return false;
+						}
+					}
+				});
+				return;
+			}
+			session.busy = true;
+		}
+		try {
+			executor.execute(command);
+		} catch (RejectedExecutionException e) {
+			next(session);
+			throw e;
+		}
+	}
+
+	/**
+	 * Starts the next command waiting in a session, called when a command
+	 * of the session has completed.
+	 */
+	private static void next(CardSession session) {
+		while (true) {
+			Turn turn;
+			synchronized (session.lock) {
+				turn = session.turns.poll();
+				if (turn == null) {
+					session.busy = false;
+					return;
+				}
+			}
+			if (turn.start()) {
+				return;
+			}
+		}
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Processes a Command APDU, the previous command of the session has
+	 * completed.
+	 */
+	private ResponseAPDU process(CardSession session, CommandAPDU command) {
+		if (!command.isValidAPDU()) {
+			return new ResponseAPDU(ResponseAPDU.STATUS_UNKNOWN_ERROR);
+		}
+		byte ins = command.getIns();
+		if (ins == CommandAPDU.INS_GET_REMAINING_RESULT) {
+			return nextParcel(session);
+		}
+		session.remaining = null;
+		ResponseAPDU response;
+		if (ins == CommandAPDU.INS_GET_PENDING_RESULT) {
+			response = session.pollPending();
+			if (response == null) {
+				return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_NOT_ALLOWED);
+			}
+		} else {
+			APDUHandler handler = getHandler(command.getCla(), ins);
+			if (handler == null) {
+				return new ResponseAPDU(ResponseAPDU.STATUS_INS_NOT_SUPPORTED);
+			}
+			if (session.isRunning()) {
+				return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_NOT_ALLOWED);
+			}
+			try {
+				response = handler.handle(session, command);
+			} catch (RuntimeException e) {
+				ErrorListener listener = errorListener;
+				if (listener != null) {
+					listener.handlerFailed(session, command, e);
+				}
+				response = null;
+			}
+			if (response == null || !response.isValidAPDU()) {
+				return new ResponseAPDU(ResponseAPDU.STATUS_UNKNOWN_ERROR);
+			}
+		}
+		if (response.getStandardResponseAPDUCount(parcelSize) > 1) {
+			session.remaining = response;
+			session.nextParcel = 0;
+			return nextParcel(session);
+		}
+		return response;
+	}
+
+	/**
+	 * Processes a Command APDU on the executor of this simulator, returning
+	 * a {@link CompletableFuture}, e.g. as channel for a
+	 * {@link PendingResultPoller}. Like
+	 * {@link #submit(CardSession, CommandAPDU)}, the command is handed to
+	 * the executor only when the previous command of the session has
+	 * completed.
+	 *
+	 * @param session
+	 *            The session to send the command in.
+	 * @param command
+	 *            The Command APDU.
+	 * @return Future of the Response APDU. It is cancelled if the executor
+	 *         rejects the command after it waited for an earlier one.
+	 * @throws RejectedExecutionException
+	 *             If the executor rejects the command right away.
+	 */
+	public CompletableFuture<ResponseAPDU> transmitAsync(
+			final CardSession session, final CommandAPDU command) {
+		final CompletableFuture<ResponseAPDU> ret = new CompletableFuture<>();
+		execute(session, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ret.complete(process(session, command));
+				} catch (RuntimeException e) {
+					ret.completeExceptionally(e);
+				}
+			}
+		}, ret);
+		return ret;
+	}
+
+	/**
+	 * Processes Command APDUs one after the other as a single task on the
+	 * executor of this simulator, see
+	 * {@link #transmitAsync(CardSession, CommandAPDU)}.
+	 *
+	 * @param session
+	 *            The session to send the commands in.
+	 * @param commands
+	 *            The Command APDUs.
+	 * @return Future of the Response APDUs, in the order of the commands.
+	 *         It is cancelled if the executor rejects the commands after
+	 *         they waited for an earlier one.
+	 * @throws RejectedExecutionException
+	 *             If the executor rejects the commands right away.
+	 */
+	public CompletableFuture<List<ResponseAPDU>> transmitAsync(
+			final CardSession session, final List<CommandAPDU> commands) {
+		final CompletableFuture<List<ResponseAPDU>> ret = new CompletableFuture<>();
+		execute(session, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					List<ResponseAPDU> responses = new ArrayList<>(commands.size());
+					for (CommandAPDU command : commands) {
+						responses.add(process(session, command));
+					}
+					ret.complete(responses);
+				} catch (RuntimeException e) {
+					ret.completeExceptionally(e);
+				}
+			}
+		}, ret);
+		return ret;
+	}
+
+	private APDUHandler getHandler(byte cla, byte ins) {
+		APDUHandler handler = handlers.get(((cla & 0xFF) << 8) | (ins & 0xFF));
+		return handler != null ? handler : insHandlers.get(ins & 0xFF);
+	}
+
+	/**
+	 * Returns the next parcel of the parcelled response of a session.
+	 */
+	private ResponseAPDU nextParcel(CardSession session) {
+		ResponseAPDU remaining = session.remaining;
+		if (remaining == null) {
+			return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_NOT_ALLOWED);
+		}
+		int number = session.nextParcel++;
+		if (session.nextParcel == remaining.getStandardResponseAPDUCount(parcelSize)) {
+			session.remaining = null;
+		}
+		return remaining.getStandardResponseAPDU(number, parcelSize);
+	}
+
+	/**
+	 * Returns the executor used by {@link #submit(CardSession, CommandAPDU)}.
+	 *
+	 * @return The executor.
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Shuts down the executor if it was created by this simulator.
+	 */
+	@Override
+	public void close() {
+		if (ownExecutor) {
+			executor.shutdown();
+		}
+	}
+}
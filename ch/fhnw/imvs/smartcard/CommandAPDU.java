@@ -1,5 +1,6 @@
 package ch.fhnw.imvs.smartcard;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 import ch.fhnw.imvs.util.ConverterUtils;
@@ -98,11 +99,61 @@ public class CommandAPDU {
 
 	public static final byte INS_GET_REMAINING_RESULT = (byte) 0xFD;
 
+	/**
+	 * Maximum length of the Data field of a Standard APDU
+	 */
+	public static final int MAXIMUM_STANDARD_LC = 255;
+
+	/**
+	 * Maximum number of expected response bytes of a Standard APDU
+	 */
+	public static final int MAXIMUM_STANDARD_NE = 256;
+
+	/**
+	 * Maximum length of the Data field of an Extended APDU
+	 */
+	public static final int MAXIMUM_EXTENDED_LC = 65535;
+
+	/**
+	 * Maximum number of expected response bytes of an Extended APDU
+	 */
+	public static final int MAXIMUM_EXTENDED_NE = 65536;
+
 	/**
 	 * Contains the bytearray-Representation of this APDU
 	 */
 	private final byte[] data;
 
+	/**
+	 * Case (1-4) of this APDU, 0 if the APDU is not valid
+	 */
+	private final int apduCase;
+
+	/**
+	 * Whether this APDU uses the extended length fields
+	 */
+	private final boolean extended;
+
+	/**
+	 * Value of the Lc field, 0 if not present
+	 */
+	private final int lc;
+
+	/**
+	 * Value of the Le field, -1 if not present
+	 */
+	private final int le;
+
+	/**
+	 * Position of the Data field in <code>data</code>
+	 */
+	private final int dataOffset;
+
+	/**
+	 * Cached hashcode, 0 if not computed yet
+	 */
+	private int hash;
+
 	/**
 	 * Creates a CommandAPDU object out of the raw bytes of an APDU.
 	 * 
@@ -110,108 +161,303 @@ public class CommandAPDU {
 	 *            The Bytearray containing the Command APDU
 	 */
 	public CommandAPDU(final byte[] data) {
-		if (data != null) {
-			this.data = new byte[data.length];
-			System.arraycopy(data, 0, this.data, 0, data.length);
-		} else {
-			this.data = new byte[0];
-		}
+		this(data != null ? data.clone() : new byte[0], false);
 	}
 
 	/**
-	 * Creates a {@link CommandAPDU} object from header, body and le. Does not support extended APDU.
+	 * Creates a {@link CommandAPDU} object from header, body and le. If the body is longer than 255 bytes, an Extended APDU is created.
 	 * @param header The Bytearray containing the header.
 	 * @param body The Bytearray containing the body. Null if no body.
-	 * @param le The Bytearray containing the response length expected. Null if no response expected.
+	 * @param le The Bytearray containing the response length expected. Null if no response expected, 0 for 256.
 	 */
 	public CommandAPDU(final byte[] header, final byte[] body, final Byte le) {
-		// TODO support extended APDU
-		
-		if ((header == null) || header.length != 4) {
-			this.data = new byte[0];
-			return;
+		this(encode(header, body, le), false);
+	}
+
+	/**
+	 * Creates a {@link CommandAPDU} object from the header fields, the
+	 * Argument Data and the number of expected response bytes. The Standard
+	 * encoding is used if possible, the Extended encoding if the Argument Data
+	 * is longer than {@value #MAXIMUM_STANDARD_LC} bytes or more than
+	 * {@value #MAXIMUM_STANDARD_NE} response bytes are expected.
+	 * 
+	 * @param cla
+	 *            The CLA byte.
+	 * @param ins
+	 *            The INS byte.
+	 * @param p1
+	 *            The P1 byte.
+	 * @param p2
+	 *            The P2 byte.
+	 * @param body
+	 *            The Argument Data, null or empty if no Data field.
+	 * @param ne
+	 *            Number of expected response bytes (1 to
+	 *            {@value #MAXIMUM_EXTENDED_NE}), 0 if no Le field.
+	 * @throws IllegalArgumentException
+	 *             If the Argument Data is too long or <code>ne</code> is out
+	 *             of range.
+	 */
+	public CommandAPDU(final byte cla, final byte ins, final byte p1,
+			final byte p2, final byte[] body, final int ne) {
+		this(encode(cla, ins, p1, p2, body, ne), false);
+	}
+
+	/**
+	 * Creates a CommandAPDU object using <code>data</code> without copying
+	 * it, and decodes its structure.
+	 * 
+	 * @param data
+	 *            The Bytearray containing the Command APDU, must not be
+	 *            modified afterwards.
+	 * @param unused
+	 *            Distinguishes this constructor from the public one.
+	 */
+	private CommandAPDU(final byte[] data, final boolean unused) {
+		this.data = data;
+		CommandAPDUFormat format = new CommandAPDUFormat();
+		format.decode(data, 0, data.length);
+		apduCase = format.apduCase;
+		extended = format.extended;
+		lc = format.lc;
+		le = format.le;
+		dataOffset = format.dataOffset;
+	}
+
+	/**
+	 * Creates a CommandAPDU object using <code>data</code> without copying
+	 * it.
+	 * 
+	 * @param data
+	 *            The Bytearray containing the Command APDU, must not be
+	 *            modified afterwards.
+	 * @return The CommandAPDU.
+	 */
+	static CommandAPDU adopt(final byte[] data) {
+		return new CommandAPDU(data, false);
+	}
+
+	/**
+	 * Returns the length of the encoding of an APDU with the given Argument
+	 * Data length and number of expected response bytes, see
+	 * {@link #encode(byte, byte, byte, byte, byte[], int, int, int, byte[], int)}.
+	 * 
+	 * @param lc
+	 *            Length of the Argument Data (0 to
+	 *            {@value #MAXIMUM_EXTENDED_LC}).
+	 * @param ne
+	 *            Number of expected response bytes (0 to
+	 *            {@value #MAXIMUM_EXTENDED_NE}).
+	 * @return Length of the encoded APDU.
+	 * @throws IllegalArgumentException
+	 *             If <code>lc</code> or <code>ne</code> is out of range.
+	 */
+	public static int getEncodedLength(final int lc, final int ne) {
+		checkLengths(lc, ne);
+		boolean extended = isExtended(lc, ne);
+		int length = 4;
+		if (lc > 0) {
+			length += (extended ? 3 : 1) + lc;
 		}
-		int dataLength = header.length + body.length;
-		if (!isEmpty(body)) {
-			dataLength += 1;
+		if (ne > 0) {
+			length += extended ? (lc > 0 ? 2 : 3) : 1;
 		}
-		if (le != null) {
-			dataLength += 1;
+		return length;
+	}
+
+	/**
+	 * Encodes an APDU into <code>dst</code>, starting at
+	 * <code>dstOffset</code>. The Standard encoding is used if possible, the
+	 * Extended encoding if <code>lc</code> is larger than
+	 * {@value #MAXIMUM_STANDARD_LC} or <code>ne</code> is larger than
+	 * {@value #MAXIMUM_STANDARD_NE}. The Argument Data is copied directly
+	 * into <code>dst</code>, no intermediate arrays are created.
+	 * 
+	 * @param cla
+	 *            The CLA byte.
+	 * @param ins
+	 *            The INS byte.
+	 * @param p1
+	 *            The P1 byte.
+	 * @param p2
+	 *            The P2 byte.
+	 * @param body
+	 *            Array containing the Argument Data, may be null if
+	 *            <code>lc</code> is 0.
+	 * @param bodyOffset
+	 *            Start of the Argument Data in <code>body</code>.
+	 * @param lc
+	 *            Length of the Argument Data (0 to
+	 *            {@value #MAXIMUM_EXTENDED_LC}), 0 if no Data field.
+	 * @param ne
+	 *            Number of expected response bytes (1 to
+	 *            {@value #MAXIMUM_EXTENDED_NE}), 0 if no Le field.
+	 * @param dst
+	 *            The destination array.
+	 * @param dstOffset
+	 *            Start of the APDU in <code>dst</code>.
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException
+	 *             If <code>lc</code> or <code>ne</code> is out of range.
+	 * @throws IndexOutOfBoundsException
+	 *             If the Argument Data is not inside of <code>body</code> or
+	 *             the APDU does not fit into <code>dst</code>.
+	 */
+	public static int encode(final byte cla, final byte ins, final byte p1,
+			final byte p2, final byte[] body, final int bodyOffset,
+			final int lc, final int ne, final byte[] dst, final int dstOffset) {
+		int length = getEncodedLength(lc, ne);
+		if (lc > 0
+				&& (bodyOffset < 0 || bodyOffset + lc > body.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (dstOffset < 0 || length > dst.length - dstOffset) {
+			throw new IndexOutOfBoundsException(
+					"Encoding does not fit into the destination");
+		}
+		boolean extended = isExtended(lc, ne);
+		int offset = dstOffset;
+		dst[offset++] = cla;
+		dst[offset++] = ins;
+		dst[offset++] = p1;
+		dst[offset++] = p2;
+		if (lc > 0) {
+			if (extended) {
+				dst[offset++] = 0x00;
+				offset = ConverterUtils.putShort(dst, offset, (short) lc);
+			} else {
+				dst[offset++] = (byte) lc;
+			}
+			System.arraycopy(body, bodyOffset, dst, offset, lc);
+			offset += lc;
+		}
+		if (ne > 0) {
+			// 256 and 65536 are encoded as 0
+			if (extended) {
+				if (lc == 0) {
+					dst[offset++] = 0x00;
+				}
+				offset = ConverterUtils.putShort(dst, offset, (short) ne);
+			} else {
+				dst[offset++] = (byte) ne;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encodes an APDU into <code>dst</code> at its current position, see
+	 * {@link #encode(byte, byte, byte, byte, byte[], int, int, int, byte[], int)}.
+	 * The position is advanced by the number of bytes written.
+	 * 
+	 * @param cla
+	 *            The CLA byte.
+	 * @param ins
+	 *            The INS byte.
+	 * @param p1
+	 *            The P1 byte.
+	 * @param p2
+	 *            The P2 byte.
+	 * @param body
+	 *            Array containing the Argument Data, may be null if
+	 *            <code>lc</code> is 0.
+	 * @param bodyOffset
+	 *            Start of the Argument Data in <code>body</code>.
+	 * @param lc
+	 *            Length of the Argument Data, 0 if no Data field.
+	 * @param ne
+	 *            Number of expected response bytes, 0 if no Le field.
+	 * @param dst
+	 *            The destination buffer.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException
+	 *             If the APDU does not fit into <code>dst</code>.
+	 */
+	public static int encode(final byte cla, final byte ins, final byte p1,
+			final byte p2, final byte[] body, final int bodyOffset,
+			final int lc, final int ne, final ByteBuffer dst) {
+		int length = getEncodedLength(lc, ne);
+		if (length > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			encode(cla, ins, p1, p2, body, bodyOffset, lc, ne, dst.array(),
+					dst.arrayOffset() + dst.position());
+			dst.position(dst.position() + length);
+			return length;
+		}
+		if (lc > 0
+				&& (bodyOffset < 0 || bodyOffset + lc > body.length)) {
+			throw new IndexOutOfBoundsException();
 		}
+		boolean extended = isExtended(lc, ne);
+		dst.put(cla).put(ins).put(p1).put(p2);
+		if (lc > 0) {
+			if (extended) {
+				dst.put((byte) 0x00).put((byte) (lc >>> 8));
+			}
+			dst.put((byte) lc).put(body, bodyOffset, lc);
+		}
+		if (ne > 0) {
+			if (extended) {
+				if (lc == 0) {
+					dst.put((byte) 0x00);
+				}
+				dst.put((byte) (ne >>> 8));
+			}
+			dst.put((byte) ne);
+		}
+		return length;
+	}
 
-		ByteBuffer buffer = ByteBuffer.allocate(dataLength);
-		buffer.put(header);
-		if (!isEmpty(body)) {
-			buffer.put((byte) body.length);
-			buffer.put(body);
+	private static byte[] encode(final byte cla, final byte ins,
+			final byte p1, final byte p2, final byte[] body, final int ne) {
+		int lc = isEmpty(body) ? 0 : body.length;
+		byte[] ret = new byte[getEncodedLength(lc, ne)];
+		encode(cla, ins, p1, p2, body, 0, lc, ne, ret, 0);
+		return ret;
+	}
+
+	private static byte[] encode(final byte[] header, final byte[] body,
+			final Byte le) {
+		if ((header == null) || header.length != 4) {
+			return new byte[0];
 		}
+		int ne = 0;
 		if (le != null) {
-			buffer.put(le);
+			ne = (le & 0xFF) == 0 ? MAXIMUM_STANDARD_NE : le & 0xFF;
 		}
+		return encode(header[0], header[1], header[2], header[3], body, ne);
+	}
 
-		this.data = buffer.array();
+	private static void checkLengths(final int lc, final int ne) {
+		if (lc < 0 || lc > MAXIMUM_EXTENDED_LC) {
+			throw new IllegalArgumentException("Invalid length of Data: " + lc);
+		}
+		if (ne < 0 || ne > MAXIMUM_EXTENDED_NE) {
+			throw new IllegalArgumentException(
+					"Invalid number of expected response bytes: " + ne);
+		}
 	}
 
-	private boolean isEmpty(final byte[] bs) {
+	private static boolean isExtended(final int lc, final int ne) {
+		return lc > MAXIMUM_STANDARD_LC || ne > MAXIMUM_STANDARD_NE;
+	}
+
+	private static boolean isEmpty(final byte[] bs) {
 		return (bs == null) || bs.length == 0;
 	}
 
 	/**
 	 * Checks if the APDU is valid. Checks for each of the case types if the
 	 * length fields are set correctly and in accordance with the length of the
-	 * bytearray.
+	 * bytearray. The check is done once when the APDU is created.
 	 * 
 	 * @return <code>true</code> if the APDU is a correct APDU according to the
 	 *         standards definition, <code>false</code> otherwise.
 	 */
 	public boolean isValidAPDU() {
-		// Check Minimal length
-		if (data.length < 4) {
-			return false;
-		}
-		// Case 1 APDU
-		else if (data.length == 4) {
-			return true;
-		}
-		// Case 2, 3 or 4 APDU
-		else {
-			// Case 2 Standard APDU
-			if (data.length == 5) {
-				return true;
-			}
-			// Case 2 Extended APDU
-			else if (data.length == 7 && data[4] == 0x00) {
-				return true;
-			}
-			// Case 3 or 4 Extended APDU
-			else if (data[4] == 0x00) {
-				// Case 3 Extended APDU
-				if (data.length == 7 + (data[5] << 8 | data[6])) {
-					return true;
-				}
-				// Case 4 Extended APDU
-				else if (data.length == 7 + (data[5] << 8 | data[6]) + 2) {
-					return true;
-				} else {
-					return false;
-				}
-			}
-			// Case 3 or 4 standard APDU
-			else {
-				// Case 3 Standard APDU
-				if (data.length == 5 + data[4]) {
-					return true;
-				}
-				// Case 4 Standard APDU
-				else if (data.length == 5 + data[4] + 1) {
-					return true;
-				} else {
-					return false;
-				}
-			}
-
-		}
-
+		return apduCase != CommandAPDUFormat.CASE_INVALID;
 	}
 
 	/**
@@ -221,7 +467,7 @@ public class CommandAPDU {
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean hasData() {
-		return getLc() != 0;
+		return lc != 0;
 	}
 
 	/**
@@ -274,30 +520,7 @@ public class CommandAPDU {
 	 *         boolean isExtendedAPDU()}.
 	 */
 	public int getLe() {
-		// Case 1 APDU
-		if (data.length == 4) {
-			return -1;
-		}
-		// Case 2 Standard APDU
-		else if (!isExtendedAPDU() && data.length == 5) {
-			return (data[4]);
-		}
-		// Case 2 Extended APDU
-		else if (isExtendedAPDU() && data.length == 7) {
-			return (data[5] << 8) & data[6];
-		}
-		// Case 3 APDU
-		else if (data.length == 4 + (isExtendedAPDU() ? 3 : 1) + getLc()) {
-			return -1;
-		}
-		// Case 4 Extended APDU
-		else if (isExtendedAPDU()) {
-			return (data[data.length - 2] << 8) | data[data.length - 1];
-		}
-		// Case 4 Standard APDU
-		else {
-			return data[data.length - 1];
-		}
+		return le;
 	}
 
 	/**
@@ -307,26 +530,7 @@ public class CommandAPDU {
 	 * @return Value of the Lc-Field or <code>0</code> if not present.
 	 */
 	public int getLc() {
-		// Case 1 APDU
-		if (data.length == 4) {
-			return 0;
-		}
-		// Case 2 Standard APDU
-		else if (!isExtendedAPDU() && data.length == 5) {
-			return 0;
-		}
-		// Case 2 Extended APDU
-		else if (isExtendedAPDU() && data.length == 7) {
-			return 0;
-		}
-		// Case 3 / 4 Extended APDU
-		else if (isExtendedAPDU()) {
-			return (data[5] << 8) | data[6];
-		}
-		// Case 3 / 4 Standard APDU
-		else {
-			return data[4];
-		}
+		return lc;
 	}
 
 	/**
@@ -337,22 +541,9 @@ public class CommandAPDU {
 	 *         bytearray is returned.
 	 */
 	public byte[] getArgumentData() {
-		// Case 1 / 2 APDU
-		if (getLc() == 0) {
-			return new byte[0];
-		}
-		// Case 3 / 4 Extended APDU
-		else if (isExtendedAPDU()) {
-			byte[] ret = new byte[getLc()];
-			System.arraycopy(data, 7, ret, 0, getLc());
-			return ret;
-		}
-		// Case 3 / 4 Standard APDU
-		else {
-			byte[] ret = new byte[getLc()];
-			System.arraycopy(data, 5, ret, 0, getLc());
-			return ret;
-		}
+		byte[] ret = new byte[lc];
+		System.arraycopy(data, dataOffset, ret, 0, lc);
+		return ret;
 	}
 
 	/**
@@ -362,7 +553,7 @@ public class CommandAPDU {
 	 *         notation, <code>false</code> otherwise.
 	 */
 	public boolean isExtendedAPDU() {
-		return (data.length >= 7) && data[4] == 0x00;
+		return extended;
 	}
 
 	/**
@@ -376,8 +567,77 @@ public class CommandAPDU {
 		return ret;
 	}
 
+	/**
+	 * Returns the underlying bytearray without copying it. Must not be
+	 * modified.
+	 */
+	byte[] array() {
+		return data;
+	}
+
+	/**
+	 * Returns true if the raw bytes of both APDUs are equal.
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+		if (!(o instanceof CommandAPDU))
+			return false;
+		CommandAPDU other = (CommandAPDU) o;
+		if (hash != 0 && other.hash != 0 && hash != other.hash)
+			return false;
+		return other.contentEquals(data, 0, data.length);
+	}
+
+	/**
+	 * Hashcode based on the raw bytes, consistent with
+	 * {@link #equals(Object)}. Equal to <code>Arrays.hashCode(getRaw())</code>
+	 * and computed only once.
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 1;
+			for (int i = 0; i < data.length; i++) {
+				h = 31 * h + data[i];
+			}
+			hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Compares this APDU with the raw bytes of an APDU in a region of a
+	 * bytearray, without creating an object for them.
+	 * 
+	 * @param other
+	 *            Bytearray containing the APDU to compare with.
+	 * @param offset
+	 *            Start of the APDU in <code>other</code>.
+	 * @param length
+	 *            Length of the APDU.
+	 * @return <code>true</code> if the region contains exactly the raw bytes
+	 *         of this APDU.
+	 * @throws IndexOutOfBoundsException
+	 *             If the region is not inside of <code>other</code>.
+	 */
+	public boolean contentEquals(byte[] other, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > other.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length != data.length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (data[i] != other[offset + i])
+				return false;
+		}
+		return true;
+	}
+
 	@Override
 	public String toString() {
-		return ConverterUtils.toHexString(getRaw());
+		return ConverterUtils.toHexString(data, 0, data.length, 0);
 	}
 }
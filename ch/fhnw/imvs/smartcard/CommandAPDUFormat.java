@@ -0,0 +1,135 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the structure (case, Lc, Le, position of the Data field) of a
+ * Command APDU once, so the accessors of {@link CommandAPDU} and
+ * {@link CommandAPDUView} only have to read fields. See {@link CommandAPDU}
+ * for the rules.
+ */
+final class CommandAPDUFormat {
+
+	/**
+	 * Case of an invalid APDU
+	 */
+	static final int CASE_INVALID = 0;
+
+	/**
+	 * Case 1-4, or {@link #CASE_INVALID}
+	 */
+	int apduCase;
+
+	/**
+	 * Whether the Extended length fields are used
+	 */
+	boolean extended;
+
+	/**
+	 * Value of the Lc field, 0 if not present
+	 */
+	int lc;
+
+	/**
+	 * Value of the Le field, -1 if not present
+	 */
+	int le;
+
+	/**
+	 * Position of the Data field relative to the start of the APDU
+	 */
+	int dataOffset;
+
+	/**
+	 * Decodes the APDU in <code>data[offset, offset + length)</code>.
+	 * 
+	 * @return <code>true</code> if the APDU is valid.
+	 */
+	boolean decode(byte[] data, int offset, int length) {
+		if (length < 5) {
+			return decode(length, 0, 0, 0, 0, 0);
+		}
+		int end = offset + length;
+		return decode(length, data[offset + 4] & 0xFF,
+				length > 5 ? data[offset + 5] & 0xFF : 0,
+				length > 6 ? data[offset + 6] & 0xFF : 0,
+				data[end - 2] & 0xFF, data[end - 1] & 0xFF);
+	}
+
+	/**
+	 * Decodes the APDU in <code>buffer[offset, offset + length)</code>,
+	 * using absolute reads.
+	 * 
+	 * @return <code>true</code> if the APDU is valid.
+	 */
+	boolean decode(ByteBuffer buffer, int offset, int length) {
+		if (length < 5) {
+			return decode(length, 0, 0, 0, 0, 0);
+		}
+		int end = offset + length;
+		return decode(length, buffer.get(offset + 4) & 0xFF,
+				length > 5 ? buffer.get(offset + 5) & 0xFF : 0,
+				length > 6 ? buffer.get(offset + 6) & 0xFF : 0,
+				buffer.get(end - 2) & 0xFF, buffer.get(end - 1) & 0xFF);
+	}
+
+	/**
+	 * Decodes an APDU out of its length, the three bytes following the
+	 * header and the last two bytes (all unsigned).
+	 */
+	private boolean decode(int length, int b4, int b5, int b6, int last2,
+			int last1) {
+		extended = length >= 7 && b4 == 0x00;
+		lc = 0;
+		le = -1;
+		dataOffset = Math.min(4, length);
+		apduCase = CASE_INVALID;
+
+		// Check Minimal length
+		if (length < 4) {
+			return false;
+		}
+		// Case 1 APDU
+		else if (length == 4) {
+			apduCase = 1;
+		}
+		// Case 2 Standard APDU
+		else if (length == 5) {
+			apduCase = 2;
+			le = b4;
+		}
+		// Case 2 Extended APDU
+		else if (extended && length == 7) {
+			apduCase = 2;
+			le = (b5 << 8) | b6;
+		}
+		// Case 3 or 4 Extended APDU
+		else if (extended) {
+			int value = (b5 << 8) | b6;
+			if (value > 0 && length == 7 + value) {
+				apduCase = 3;
+			} else if (value > 0 && length == 7 + value + 2) {
+				apduCase = 4;
+				le = (last2 << 8) | last1;
+			} else {
+				return false;
+			}
+			lc = value;
+			dataOffset = 7;
+		}
+		// Case 3 or 4 Standard APDU
+		else {
+			if (b4 > 0 && length == 5 + b4) {
+				apduCase = 3;
+			} else if (b4 > 0 && length == 5 + b4 + 1) {
+				apduCase = 4;
+				le = last1;
+			} else {
+				return false;
+			}
+			lc = b4;
+			dataOffset = 5;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,324 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.nio.ByteBuffer;
+
+import ch.fhnw.imvs.util.ConverterUtils;
+
+/**
+ * Flyweight variant of {@link CommandAPDU}: A reusable view on a region of a
+ * bytearray or {@link ByteBuffer} containing a Command APDU. The view does
+ * not copy the APDU; it can be re-pointed to another region with one of the
+ * <code>wrap</code> methods, so a single instance can be used to process any
+ * number of APDUs without creating garbage.
+ * 
+ * <p>
+ * 
+ * The structure of the APDU (case, Lc, Le) is decoded once by
+ * <code>wrap</code>. The accessors read the header bytes directly from the
+ * region, the Data field is exposed as a read-only slice of it. The region
+ * must not be modified while the view points to it.
+ * 
+ * <p>
+ * 
+ * The rules and the interpretation of the fields are the same as for
+ * {@link CommandAPDU}. Instances of this class are not thread-safe.
+ */
+public final class CommandAPDUView {
+
+	/**
+	 * Array containing the APDU, null if pointing to a buffer without
+	 * accessible array
+	 */
+	private byte[] array;
+
+	/**
+	 * Buffer containing the APDU if <code>array</code> is null
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Start of the APDU in the array or buffer
+	 */
+	private int offset;
+
+	/**
+	 * Length of the APDU
+	 */
+	private int length;
+
+	/**
+	 * Index in <code>array</code> of the first element of the buffer the view
+	 * was pointed to, 0 if pointed to an array or a buffer without accessible
+	 * array
+	 */
+	private int base;
+
+	/**
+	 * Decoded structure of the APDU
+	 */
+	private final CommandAPDUFormat format = new CommandAPDUFormat();
+
+	/**
+	 * Whether the current APDU is valid
+	 */
+	private boolean valid;
+
+	/**
+	 * Creates a view pointing to an empty (invalid) APDU. Use one of the
+	 * <code>wrap</code> methods to point it to an APDU.
+	 */
+	public CommandAPDUView() {
+		wrap(new byte[0], 0, 0);
+	}
+
+	/**
+	 * Points this view to the APDU in <code>data[offset, offset + length)</code>.
+	 * 
+	 * @param data
+	 *            Array containing the APDU.
+	 * @param offset
+	 *            Start of the APDU in <code>data</code>.
+	 * @param length
+	 *            Length of the APDU.
+	 * @return This view.
+	 * @throws IndexOutOfBoundsException
+	 *             If the region is not inside of <code>data</code>.
+	 */
+	public CommandAPDUView wrap(byte[] data, int offset, int length) {
+		wrapArray(data, offset, length);
+		base = 0;
+		return this;
+	}
+
+	private void wrapArray(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.array = data;
+		this.buffer = null;
+		this.offset = offset;
+		this.length = length;
+		valid = format.decode(data, offset, length);
+	}
+
+	/**
+	 * Points this view to the APDU between the position and the limit of
+	 * <code>data</code>. The position and limit of <code>data</code> are not
+	 * changed.
+	 * 
+	 * @param data
+	 *            Buffer containing the APDU.
+	 * @return This view.
+	 */
+	public CommandAPDUView wrap(ByteBuffer data) {
+		return wrap(data, data.position(), data.remaining());
+	}
+
+	/**
+	 * Points this view to the APDU at the absolute positions
+	 * <code>[offset, offset + length)</code> of <code>data</code>.
+	 * 
+	 * @param data
+	 *            Buffer containing the APDU.
+	 * @param offset
+	 *            Absolute start of the APDU in <code>data</code>.
+	 * @param length
+	 *            Length of the APDU.
+	 * @return This view.
+	 * @throws IndexOutOfBoundsException
+	 *             If the region is not inside of the limit of
+	 *             <code>data</code>.
+	 */
+	public CommandAPDUView wrap(ByteBuffer data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.limit()) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (data.hasArray()) {
+			wrapArray(data.array(), data.arrayOffset() + offset, length);
+			base = data.arrayOffset();
+			return this;
+		}
+		base = 0;
+		this.array = null;
+		this.buffer = data;
+		this.offset = offset;
+		this.length = length;
+		valid = format.decode(data, offset, length);
+		return this;
+	}
+
+	private byte get(int index) {
+		return array != null ? array[offset + index] : buffer.get(offset
+				+ index);
+	}
+
+	/**
+	 * Checks if the APDU is valid, see {@link CommandAPDU#isValidAPDU()}.
+	 * 
+	 * @return <code>true</code> if the APDU is a correct APDU according to the
+	 *         standards definition, <code>false</code> otherwise.
+	 */
+	public boolean isValidAPDU() {
+		return valid;
+	}
+
+	/**
+	 * Returns the length of the APDU.
+	 * 
+	 * @return Number of bytes of the APDU.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns whether the Data field is present in this APDU.
+	 * 
+	 * @return <code>true</code> if the APDU contains a Data field,
+	 *         <code>false</code> otherwise.
+	 */
+	public boolean hasData() {
+		return format.lc != 0;
+	}
+
+	/**
+	 * Returns the CLA byte of the header of this APDU.
+	 * 
+	 * @return the Class byte of this APDU.
+	 */
+	public byte getCla() {
+		return get(0);
+	}
+
+	/**
+	 * Returns the INS byte of the header of this APDU.
+	 * 
+	 * @return the Instruction byte of this APDU.
+	 */
+	public byte getIns() {
+		return get(1);
+	}
+
+	/**
+	 * Returns the P1 byte of the header of this APDU.
+	 * 
+	 * @return the Parameter 1 byte of this APDU.
+	 */
+	public byte getP1() {
+		return get(2);
+	}
+
+	/**
+	 * Returns the P2 byte of the header of this APDU.
+	 * 
+	 * @return the Parameter 2 byte of this APDU.
+	 */
+	public byte getP2() {
+		return get(3);
+	}
+
+	/**
+	 * Returns the Value of the Le field of this APDU, or <code>-1</code> if not
+	 * present, see {@link CommandAPDU#getLe()}.
+	 * 
+	 * @return Value of the Le field or <code>-1</code> if not present.
+	 */
+	public int getLe() {
+		return format.le;
+	}
+
+	/**
+	 * Returns the Value of the Lc field of this APDU if present, or
+	 * <code>0</code> otherwise.
+	 * 
+	 * @return Value of the Lc-Field or <code>0</code> if not present.
+	 */
+	public int getLc() {
+		return format.lc;
+	}
+
+	/**
+	 * Returns whether this APDU uses the extended format.
+	 * 
+	 * @return <code>true</code> if this APDU uses the extended length field
+	 *         notation, <code>false</code> otherwise.
+	 */
+	public boolean isExtendedAPDU() {
+		return format.extended;
+	}
+
+	/**
+	 * Returns the position of the Data field in the array or buffer this view
+	 * points to.
+	 * 
+	 * @return Start of the Data field.
+	 */
+	public int getArgumentDataOffset() {
+		return offset - base + format.dataOffset;
+	}
+
+	/**
+	 * Returns a read-only buffer containing the Argument Data of this APDU.
+	 * The buffer shares the bytes of the region this view points to, no copy
+	 * is made. Position of the buffer is 0, limit is <code>getLc()</code>.
+	 * 
+	 * @return Argument Data, an empty buffer if no Argument Data is present.
+	 */
+	public ByteBuffer getArgumentDataBuffer() {
+		if (array != null) {
+			return ByteBuffer.wrap(array, offset + format.dataOffset, format.lc)
+					.slice().asReadOnlyBuffer();
+		}
+		ByteBuffer ret = buffer.duplicate();
+		ret.limit(offset + format.dataOffset + format.lc);
+		ret.position(offset + format.dataOffset);
+		return ret.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a copy of the Argument Data of this APDU.
+	 * 
+	 * @return <code>byte[]</code> with the length <code>getLc()</code>, filled
+	 *         with the Argument Data.
+	 */
+	public byte[] getArgumentData() {
+		byte[] ret = new byte[format.lc];
+		getArgumentDataBuffer().get(ret);
+		return ret;
+	}
+
+	/**
+	 * Returns a copy of the APDU this view points to.
+	 * 
+	 * @return A Copy of the <code>byte[]</code>-Representation of this APDU.
+	 */
+	public byte[] getRaw() {
+		byte[] ret = new byte[length];
+		if (array != null) {
+			System.arraycopy(array, offset, ret, 0, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				ret[i] = buffer.get(offset + i);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Creates a {@link CommandAPDU} containing a copy of the APDU this view
+	 * points to.
+	 * 
+	 * @return A new CommandAPDU.
+	 */
+	public CommandAPDU toCommandAPDU() {
+		return CommandAPDU.adopt(getRaw());
+	}
+
+	@Override
+	public String toString() {
+		if (array != null) {
+			return ConverterUtils.toHexString(array, offset, length, 0);
+		}
+		return ConverterUtils.toHexString(getRaw());
+	}
+}
@@ -0,0 +1,245 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits one logical command with a large body into a sequence of Standard
+ * Command APDUs using command chaining as defined in ISO 7816-4: Every APDU
+ * but the last one has the chaining bit ({@link #CLA_CHAINING}) set in the
+ * CLA byte and carries no Le field, the last one carries the original CLA
+ * byte and the Le field of the logical command.
+ *
+ * <p>
+ *
+ * The APDUs are written lazily into a single bytearray allocated when the
+ * chain is created, one after the other, and are returned as
+ * {@link CommandAPDUView}s pointing into it. No arrays are created per APDU.
+ * The view returned by an iterator is reused for every APDU, so it is only
+ * valid until the next call to {@link Iterator#next()}.
+ *
+ * <p>
+ *
+ * The body is not copied, it must not be modified while the chain is used.
+ * Instances of this class are not thread-safe.
+ */
+public final class CommandChain implements Iterable<CommandAPDUView> {
+
+	/**
+	 * Bit of the CLA byte indicating that the command is not the last one of
+	 * a chain
+	 */
+	public static final byte CLA_CHAINING = 0x10;
+
+	private final byte cla;
+
+	private final byte ins;
+
+	private final byte p1;
+
+	private final byte p2;
+
+	/**
+	 * Array containing the body of the logical command
+	 */
+	private final byte[] body;
+
+	/**
+	 * Start of the body in <code>body</code>
+	 */
+	private final int bodyOffset;
+
+	/**
+	 * Length of the body
+	 */
+	private final int bodyLength;
+
+	/**
+	 * Number of expected response bytes of the last APDU, 0 if no Le field
+	 */
+	private final int ne;
+
+	/**
+	 * Maximum length of the Data field of each APDU
+	 */
+	private final int blockSize;
+
+	/**
+	 * Number of APDUs in the chain
+	 */
+	private final int size;
+
+	/**
+	 * Buffer containing the encoded APDUs
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Creates a chain for a command with the given header, body and number
+	 * of expected response bytes, using Data fields of up to
+	 * {@value CommandAPDU#MAXIMUM_STANDARD_LC} bytes.
+	 *
+	 * @param cla
+	 *            The CLA byte, without the chaining bit.
+	 * @param ins
+	 *            The INS byte.
+	 * @param p1
+	 *            The P1 byte.
+	 * @param p2
+	 *            The P2 byte.
+	 * @param body
+	 *            The body of the command, null or empty if none.
+	 * @param ne
+	 *            Number of expected response bytes (1 to
+	 *            {@value CommandAPDU#MAXIMUM_STANDARD_NE}), 0 if no Le field.
+	 */
+	public CommandChain(byte cla, byte ins, byte p1, byte p2, byte[] body,
+			int ne) {
+		this(cla, ins, p1, p2, body, 0, body == null ? 0 : body.length, ne,
+				CommandAPDU.MAXIMUM_STANDARD_LC);
+	}
+
+	/**
+	 * Creates a chain for a command with the given header, body and number
+	 * of expected response bytes.
+	 *
+	 * @param cla
+	 *            The CLA byte, without the chaining bit.
+	 * @param ins
+	 *            The INS byte.
+	 * @param p1
+	 *            The P1 byte.
+	 * @param p2
+	 *            The P2 byte.
+	 * @param body
+	 *            Array containing the body of the command, may be null if
+	 *            <code>length</code> is 0.
+	 * @param offset
+	 *            Start of the body in <code>body</code>.
+	 * @param length
+	 *            Length of the body.
+	 * @param ne
+	 *            Number of expected response bytes (1 to
+	 *            {@value CommandAPDU#MAXIMUM_STANDARD_NE}), 0 if no Le field.
+	 * @param blockSize
+	 *            Maximum length of the Data field of each APDU (1 to
+	 *            {@value CommandAPDU#MAXIMUM_STANDARD_LC}).
+	 * @throws IllegalArgumentException
+	 *             If the chaining bit is set in <code>cla</code> or
+	 *             <code>ne</code> or <code>blockSize</code> is out of range.
+	 * @throws IndexOutOfBoundsException
+	 *             If the body is not inside of <code>body</code>.
+	 */
+	public CommandChain(byte cla, byte ins, byte p1, byte p2, byte[] body,
+			int offset, int length, int ne, int blockSize) {
+		if ((cla & CLA_CHAINING) == CLA_CHAINING) {
+			throw new IllegalArgumentException(
+					"Chaining bit must not be set in CLA");
+		}
+		if (ne < 0 || ne > CommandAPDU.MAXIMUM_STANDARD_NE) {
+			throw new IllegalArgumentException(
+					"Invalid number of expected response bytes: " + ne);
+		}
+		if (blockSize < 1 || blockSize > CommandAPDU.MAXIMUM_STANDARD_LC) {
+			throw new IllegalArgumentException("Invalid block size: "
+					+ blockSize);
+		}
+		if (length < 0
+				|| (length > 0 && (offset < 0 || offset + length > body.length))) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.cla = cla;
+		this.ins = ins;
+		this.p1 = p1;
+		this.p2 = p2;
+		this.body = body;
+		this.bodyOffset = offset;
+		this.bodyLength = length;
+		this.ne = ne;
+		this.blockSize = blockSize;
+		this.size = Math.max(1, (length + blockSize - 1) / blockSize);
+
+		// Every APDU but the last one has a full Data field and no Le field
+		int last = length - (size - 1) * blockSize;
+		long total = (long) (size - 1)
+				* CommandAPDU.getEncodedLength(blockSize, 0)
+				+ CommandAPDU.getEncodedLength(last, ne);
+		if (total > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Body too long");
+		}
+		this.buffer = new byte[(int) total];
+	}
+
+	/**
+	 * Returns the number of APDUs in this chain.
+	 *
+	 * @return Number of APDUs, at least 1.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the total length of all APDUs in this chain.
+	 *
+	 * @return Sum of the lengths of the APDUs.
+	 */
+	public int getLength() {
+		return buffer.length;
+	}
+
+	/**
+	 * Returns an iterator over the APDUs of this chain. Each APDU is encoded
+	 * when it is returned by {@link Iterator#next()}. The iterator returns
+	 * the same {@link CommandAPDUView} instance for each APDU.
+	 *
+	 * @return Iterator over the APDUs.
+	 */
+	@Override
+	public Iterator<CommandAPDUView> iterator() {
+		return new Iterator<CommandAPDUView>() {
+			private final CommandAPDUView view = new CommandAPDUView();
+			private int index;
+			private int position;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public CommandAPDUView next() {
+				if (index >= size) {
+					throw new NoSuchElementException();
+				}
+				int length = encode(index, position);
+				view.wrap(buffer, position, length);
+				position += length;
+				index++;
+				return view;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Encodes the APDU with the given index at <code>position</code> in the
+	 * buffer.
+	 *
+	 * @return Length of the APDU.
+	 */
+	private int encode(int index, int position) {
+		int start = index * blockSize;
+		if (index < size - 1) {
+			return CommandAPDU.encode((byte) (cla | CLA_CHAINING), ins, p1,
+					p2, body, bodyOffset + start, blockSize, 0, buffer,
+					position);
+		}
+		return CommandAPDU.encode(cla, ins, p1, p2, body, bodyOffset + start,
+				bodyLength - start, ne, buffer, position);
+	}
+}
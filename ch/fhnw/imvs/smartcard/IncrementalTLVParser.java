@@ -0,0 +1,359 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import ch.fhnw.imvs.util.ConverterUtils;
+
+/**
+ * Resumable parser for BERTLV-Formatted messages arriving in chunks of
+ * arbitrary size (e.g. READ BINARY responses or GET RESPONSE parcels).
+ * 
+ * <p>
+ * 
+ * The chunks are passed to {@link #feed(byte[], int, int)}. As soon as the
+ * header of a top level TLV is complete, an array of the exact size of this
+ * TLV is allocated and the following bytes are copied into it, so every byte
+ * is copied only once. Since this size is taken from the (untrusted) Length
+ * field, top level TLVs larger than a configurable maximal size are
+ * rejected before anything is allocated. Headers of nested TLVs are decoded
+ * as soon as they
+ * arrived, values are never scanned. Each TLV (nested or top level) is
+ * reported to the {@link Listener} as soon as its last byte arrived: Children
+ * are reported before their parent.
+ * 
+ * <p>
+ * 
+ * The reported TLVs are lazy views (see {@link TLV#wrap(byte[], int, boolean)})
+ * on the array of their top level TLV. This array is not modified after a
+ * byte was written to it, so the reported TLVs stay valid.
+ * 
+ * <p>
+ * 
+ * The indefinite length form is not supported, as the size of the array of a
+ * top level TLV must be known in advance. Use {@link TLVReader} for such
+ * messages.
+ * 
+ * <p>
+ * 
+ * Instances of this class are not thread-safe.
+ */
+public final class IncrementalTLVParser {
+
+	/**
+	 * Receives the TLVs decoded by an {@link IncrementalTLVParser}.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the last byte of a TLV arrived.
+		 * 
+		 * @param tlv
+		 *            The complete TLV.
+		 * @param depth
+		 *            Nesting depth of the TLV, <code>0</code> for top level
+		 *            TLVs.
+		 */
+		void tlvParsed(TLV tlv, int depth);
+	}
+
+	/**
+	 * Default maximal size of a top level TLV including its header
+	 */
+	public static final int DEFAULT_MAXIMAL_SIZE = 1 << 20;
+
+	/**
+	 * Maximal length of the header of a top level TLV
+	 */
+	private static final int MAXIMAL_HEADER_LENGTH = 16;
+
+	private final Listener listener;
+
+	/**
+	 * Maximal size of a top level TLV including its header
+	 */
+	private final int maximalSize;
+
+	/**
+	 * Header of the top level TLV while it is not complete
+	 */
+	private final byte[] header = new byte[MAXIMAL_HEADER_LENGTH];
+
+	/**
+	 * Number of bytes in <code>header</code>
+	 */
+	private int headerfilled;
+
+	/**
+	 * The current top level TLV, <code>null</code> while its header is not
+	 * complete
+	 */
+	private byte[] data;
+
+	/**
+	 * Number of bytes in <code>data</code>
+	 */
+	private int filled;
+
+	/**
+	 * Position of the next header to decode in <code>data</code>, or the end
+	 * of the current primitive TLV
+	 */
+	private int scan;
+
+	/**
+	 * Start of the current primitive TLV in <code>data</code>, -1 if the
+	 * next item at <code>scan</code> is a header
+	 */
+	private int primitivestart = -1;
+
+	/**
+	 * Starts of the open composed TLVs in <code>data</code>
+	 */
+	private int[] starts = new int[8];
+
+	/**
+	 * Ends of the open composed TLVs in <code>data</code>
+	 */
+	private int[] ends = new int[8];
+
+	/**
+	 * Number of open composed TLVs
+	 */
+	private int depth;
+
+	/**
+	 * Creates a parser reporting to the given listener, accepting top level
+	 * TLVs of up to {@value #DEFAULT_MAXIMAL_SIZE} bytes.
+	 * 
+	 * @param listener
+	 *            Receives the parsed TLVs.
+	 */
+	public IncrementalTLVParser(Listener listener) {
+		this(listener, DEFAULT_MAXIMAL_SIZE);
+	}
+
+	/**
+	 * Creates a parser reporting to the given listener.
+	 * 
+	 * @param listener
+	 *            Receives the parsed TLVs.
+	 * @param maximalSize
+	 *            Maximal size of a top level TLV including its header, in
+	 *            bytes. Larger TLVs are rejected by
+	 *            {@link #feed(byte[], int, int)}.
+	 */
+	public IncrementalTLVParser(Listener listener, int maximalSize) {
+		if (listener == null) {
+			throw new IllegalArgumentException(
+					"Listener is not allowed to be null");
+		}
+		if (maximalSize < 2) {
+			throw new IllegalArgumentException("Invalid maximal size: "
+					+ maximalSize);
+		}
+		this.listener = listener;
+		this.maximalSize = maximalSize;
+	}
+
+	/**
+	 * Feeds the next chunk of data to the parser.
+	 * 
+	 * @param chunk
+	 *            The next bytes of the message(s).
+	 */
+	public void feed(byte[] chunk) {
+		feed(chunk, 0, chunk.length);
+	}
+
+	/**
+	 * Feeds the next chunk of data to the parser. The bytes are copied, the
+	 * caller may reuse <code>chunk</code> after this method returned.
+	 * 
+	 * @param chunk
+	 *            Array containing the next bytes of the message(s).
+	 * @param offset
+	 *            Start of the bytes in <code>chunk</code>.
+	 * @param length
+	 *            Number of bytes.
+	 * @throws IllegalArgumentException
+	 *             If the data does not contain valid TLVs or a top level TLV
+	 *             exceeds the maximal size. The state of the parser is
+	 *             undefined afterwards, see {@link #reset()}.
+	 */
+	public void feed(byte[] chunk, int offset, int length) {
+		int end = offset + length;
+		while (offset < end) {
+			if (data == null) {
+				header[headerfilled++] = chunk[offset++];
+				startTopLevel();
+			} else {
+				int n = Math.min(end - offset, data.length - filled);
+				System.arraycopy(chunk, offset, data, filled, n);
+				filled += n;
+				offset += n;
+				scan();
+			}
+		}
+	}
+
+	/**
+	 * Feeds the remaining bytes of <code>chunk</code> to the parser, see
+	 * {@link #feed(byte[], int, int)}.
+	 * 
+	 * @param chunk
+	 *            Buffer containing the next bytes of the message(s).
+	 */
+	public void feed(ByteBuffer chunk) {
+		if (chunk.hasArray()) {
+			feed(chunk.array(), chunk.arrayOffset() + chunk.position(),
+					chunk.remaining());
+			chunk.position(chunk.limit());
+		} else {
+			byte[] tmp = new byte[Math.min(chunk.remaining(), 4096)];
+			while (chunk.hasRemaining()) {
+				int n = Math.min(tmp.length, chunk.remaining());
+				chunk.get(tmp, 0, n);
+				feed(tmp, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the parser is between two top level TLVs, i.e. all fed
+	 * bytes were reported as part of a complete TLV.
+	 * 
+	 * @return <code>true</code> if no TLV is partially parsed.
+	 */
+	public boolean isIdle() {
+		return data == null && headerfilled == 0;
+	}
+
+	/**
+	 * Discards the partially parsed TLV, if any.
+	 */
+	public void reset() {
+		data = null;
+		headerfilled = 0;
+		filled = 0;
+		scan = 0;
+		primitivestart = -1;
+		depth = 0;
+	}
+
+	/**
+	 * Allocates the array of the top level TLV if its header is complete.
+	 */
+	private void startTopLevel() {
+		int headerlength = headerLength(header, 0, headerfilled);
+		if (headerlength < 0) {
+			if (headerfilled == header.length) {
+				throw new IllegalArgumentException("Header too long");
+			}
+			return;
+		}
+		int typelength = TLV.readTypeLength(header, 0, headerlength);
+		int valuelength = TLV.readValueLength(header, typelength);
+		// valuelength is not negative, so this cannot overflow
+		if (valuelength > maximalSize - headerlength) {
+			throw new IllegalArgumentException("TLV exceeds the maximal size of "
+					+ maximalSize + " bytes");
+		}
+		data = new byte[headerlength + valuelength];
+		System.arraycopy(header, 0, data, 0, headerlength);
+		filled = headerlength;
+		scan = 0;
+		scan();
+	}
+
+	/**
+	 * Decodes the headers which arrived completely and reports the TLVs
+	 * which are complete.
+	 */
+	private void scan() {
+		while (true) {
+			if (primitivestart >= 0) {
+				if (filled < scan) {
+					return;
+				}
+				report(primitivestart);
+				primitivestart = -1;
+			}
+
+			while (depth > 0 && scan == ends[depth - 1]) {
+				depth--;
+				report(starts[depth]);
+			}
+			if (scan == data.length) {
+				// Top level TLV complete
+				reset();
+				return;
+			}
+
+			int headerlength = headerLength(data, scan, filled);
+			if (headerlength < 0) {
+				return;
+			}
+			int typelength = TLV.readTypeLength(data, scan, filled);
+			int valuelength = TLV.readValueLength(data, scan + typelength);
+			int end = scan + headerlength + valuelength;
+			if (end > (depth > 0 ? ends[depth - 1] : data.length) || end < 0) {
+				throw new IllegalArgumentException(
+						"Size of children not correct");
+			}
+
+			if ((data[scan] & TLV.CONSTRUCTED_MASK) == TLV.CONSTRUCTED_MASK) {
+				if (depth == starts.length) {
+					starts = Arrays.copyOf(starts, depth * 2);
+					ends = Arrays.copyOf(ends, depth * 2);
+				}
+				starts[depth] = scan;
+				ends[depth] = end;
+				depth++;
+				scan += headerlength;
+			} else {
+				primitivestart = scan;
+				scan = end;
+			}
+		}
+	}
+
+	private void report(int start) {
+		// depth is the number of composed TLVs still open around this one
+		listener.tlvParsed(TLV.wrap(data, start, true), depth);
+	}
+
+	/**
+	 * Returns the length of the header starting at <code>offset</code>, or
+	 * <code>-1</code> if it is not complete before <code>limit</code>.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the header is invalid.
+	 */
+	private static int headerLength(byte[] data, int offset, int limit) {
+		int i = offset;
+		if (i >= limit) {
+			return -1;
+		}
+		// Longform
+		if ((data[i++] & TLV.IDENTIFIER_MASK) == TLV.IDENTIFIER_MASK) {
+			do {
+				if (i >= limit) {
+					return -1;
+				}
+			} while ((data[i++] & 0x80) == 0x80);
+		}
+		if (i >= limit) {
+			return -1;
+		}
+		if (TLV.isIndefiniteLength(data, i)) {
+			throw new IllegalArgumentException(
+					"Indefinite length not supported");
+		}
+		int lengthlength = ConverterUtils.getBERLengthFieldLength(data, i);
+		if (i + lengthlength > limit) {
+			return -1;
+		}
+		return i + lengthlength - offset;
+	}
+}
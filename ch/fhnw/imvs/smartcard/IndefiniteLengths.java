@@ -0,0 +1,70 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.Arrays;
+
+/**
+ * Value lengths of the nested indefinite length TLVs inside of an indefinite
+ * length {@link TLV}, recorded while its contents are scanned for the
+ * End-of-contents octets. The descendants of the TLV look up their length
+ * here instead of scanning their contents again, so each header is read only
+ * once. The value offsets are relative to the start of the outermost TLV and
+ * recorded in ascending order.
+ */
+final class IndefiniteLengths {
+
+	/**
+	 * Returned by {@link #get(int)} for unknown offsets
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * Start of the value of each recorded TLV
+	 */
+	private int[] offsets = new int[8];
+
+	/**
+	 * Value length of each recorded TLV, NONE while its End-of-contents
+	 * octets were not found yet
+	 */
+	private int[] lengths = new int[8];
+
+	private int count;
+
+	/**
+	 * Records the start of the value of a TLV.
+	 *
+	 * @return The number of the entry, see {@link #end(int, int)}.
+	 */
+	int start(int offset) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+		}
+		offsets[count] = offset;
+		lengths[count] = NONE;
+		return count++;
+	}
+
+	/**
+	 * Records the end of the value of the TLV of entry <code>entry</code>.
+	 */
+	void end(int entry, int offset) {
+		lengths[entry] = offset - offsets[entry];
+	}
+
+	/**
+	 * Returns the value length of the TLV whose value starts at
+	 * <code>offset</code>, or {@link #NONE} if it was not recorded.
+	 */
+	int get(int offset) {
+		int i = Arrays.binarySearch(offsets, 0, count, offset);
+		return i >= 0 ? lengths[i] : NONE;
+	}
+
+	/**
+	 * Returns whether no TLV was recorded.
+	 */
+	boolean isEmpty() {
+		return count == 0;
+	}
+}
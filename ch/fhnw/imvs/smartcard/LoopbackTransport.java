@@ -0,0 +1,67 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link APDUTransport} sending the commands directly to a session of a
+ * {@link CardSimulator}, processed on the executor of the simulator. A batch
+ * is processed as a single task. The simulator processes the commands of a
+ * session in the order they were submitted.
+ */
+public final class LoopbackTransport implements APDUTransport {
+
+	private final CardSimulator simulator;
+
+	private final CardSession session;
+
+	/**
+	 * Creates a transport for a new session of <code>simulator</code>.
+	 *
+	 * @param simulator
+	 *            The simulator.
+	 */
+	public LoopbackTransport(CardSimulator simulator) {
+		this(simulator, simulator.openSession());
+	}
+
+	/**
+	 * Creates a transport for a session of <code>simulator</code>.
+	 *
+	 * @param simulator
+	 *            The simulator.
+	 * @param session
+	 *            The session.
+	 */
+	public LoopbackTransport(CardSimulator simulator, CardSession session) {
+		this.simulator = simulator;
+		this.session = session;
+	}
+
+	/**
+	 * Returns the session the commands are sent in.
+	 *
+	 * @return The session.
+	 */
+	public CardSession getSession() {
+		return session;
+	}
+
+	@Override
+	public CompletableFuture<ResponseAPDU> transmit(CommandAPDU command) {
+		return simulator.transmitAsync(session, command);
+	}
+
+	@Override
+	public CompletableFuture<List<ResponseAPDU>> transmitBatch(
+			List<CommandAPDU> commands) {
+		return simulator.transmitAsync(session, commands);
+	}
+
+	/**
+	 * Does nothing, the simulator is not closed.
+	 */
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,142 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Card side of the pending result protocol: Runs long-running commands on
+ * an executor and answers {@link ResponseAPDU#STATUS_COMMAND_RUNNING} right
+ * away. The result is stored in the {@link CardSession} when the command
+ * completes and returned by the {@link CardSimulator} for the next
+ * {@link CommandAPDU#INS_GET_PENDING_RESULT} after that; earlier ones are
+ * answered with {@link ResponseAPDU#STATUS_COMMAND_RUNNING} again. No thread
+ * is blocked while a command is running.
+ *
+ * <p>
+ *
+ * While the command is running, the simulator answers all other commands of
+ * the session except {@link CommandAPDU#INS_GET_PENDING_RESULT} and
+ * {@link CommandAPDU#INS_GET_REMAINING_RESULT} with
+ * {@link ResponseAPDU#STATUS_COMMAND_NOT_ALLOWED}, so a task may use the
+ * session like a handler does.
+ *
+ * <p>
+ *
+ * The client side of the protocol is implemented by
+ * {@link PendingResultPoller}.
+ */
+public final class PendingResultManager {
+
+	private final Executor executor;
+
+	private volatile CardSimulator.ErrorListener errorListener;
+
+	/**
+	 * Creates a manager running the commands on <code>executor</code>.
+	 *
+	 * @param executor
+	 *            The executor.
+	 */
+	public PendingResultManager(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the listener for exceptions thrown by the tasks of long-running
+	 * commands. It is called on the executor.
+	 * 
+	 * @param listener
+	 *            The listener, <code>null</code> to ignore the exceptions.
+	 * @return This manager.
+	 */
+	public PendingResultManager setErrorListener(
+			CardSimulator.ErrorListener listener) {
+		errorListener = listener;
+		return this;
+	}
+
+	/**
+	 * Starts a long-running command in a session.
+	 *
+	 * @param session
+	 *            The session the command was sent in.
+	 * @param command
+	 *            The Command APDU, passed to the error listener.
+	 * @param task
+	 *            Computes the Response APDU of the command. If it fails,
+	 *            the result is {@link ResponseAPDU#STATUS_UNKNOWN_ERROR} and
+	 *            the exception is passed to the error listener.
+	 * @return {@link ResponseAPDU#STATUS_COMMAND_RUNNING} if the command was
+	 *         started, {@link ResponseAPDU#STATUS_COMMAND_NOT_ALLOWED} if
+	 *         another command is running in the session.
+	 * @throws RejectedExecutionException
+	 *             If the executor does not accept the command. The session
+	 *             is not left pending in this case.
+	 */
+	public ResponseAPDU start(final CardSession session,
+			final CommandAPDU command, final Callable<ResponseAPDU> task) {
+		try {
+			session.startPending();
+		} catch (IllegalStateException e) {
+			return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_NOT_ALLOWED);
+		}
+		CompletableFuture<ResponseAPDU> future;
+		try {
+			future = CompletableFuture.supplyAsync(new Supplier<ResponseAPDU>() {
+				@Override
+				public ResponseAPDU get() {
+					try {
+						return task.call();
+					} catch (Exception e) {
+						CardSimulator.ErrorListener listener = errorListener;
+						if (listener != null) {
+							listener.handlerFailed(session, command, e);
+						}
+						return null;
+					}
+				}
+			}, executor);
+		} catch (RejectedExecutionException e) {
+			session.abortPending();
+			throw e;
+		}
+		future.whenComplete(new BiConsumer<ResponseAPDU, Throwable>() {
+			@Override
+			public void accept(ResponseAPDU result, Throwable failure) {
+				if (result == null || !result.isValidAPDU()) {
+					result = new ResponseAPDU(ResponseAPDU.STATUS_UNKNOWN_ERROR);
+				}
+				session.completePending(result);
+			}
+		});
+		return new ResponseAPDU(ResponseAPDU.STATUS_COMMAND_RUNNING);
+	}
+
+	/**
+	 * Returns a handler running <code>handler</code> as long-running
+	 * command, see {@link #start(CardSession, CommandAPDU, Callable)}.
+	 *
+	 * @param handler
+	 *            The handler doing the actual work.
+	 * @return A handler answering {@link ResponseAPDU#STATUS_COMMAND_RUNNING}
+	 *         right away.
+	 */
+	public APDUHandler async(final APDUHandler handler) {
+		return new APDUHandler() {
+			@Override
+			public ResponseAPDU handle(final CardSession session,
+					final CommandAPDU command) {
+				return start(session, command, new Callable<ResponseAPDU>() {
+					@Override
+					public ResponseAPDU call() {
+						return handler.handle(session, command);
+					}
+				});
+			}
+		};
+	}
+}
@@ -0,0 +1,226 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Client side of the pending result protocol: If a card answers
+ * {@link ResponseAPDU#STATUS_COMMAND_RUNNING}, the result is polled with
+ * {@link CommandAPDU#INS_GET_PENDING_RESULT} in a fixed interval until the
+ * card returns another status. Polls are scheduled on a
+ * {@link ScheduledExecutorService} and commands are sent through an
+ * asynchronous channel, so no thread is blocked while waiting and one thread
+ * can wait for any number of commands.
+ *
+ * <p>
+ *
+ * If the final response is split into parcels (<code>61xx</code>), the
+ * remaining parcels are fetched with
+ * {@link CommandAPDU#INS_GET_REMAINING_RESULT} and joined with a
+ * {@link ResponseAPDUAssembler}.
+ *
+ * <p>
+ *
+ * The card side of the protocol is implemented by
+ * {@link PendingResultManager}.
+ */
+public final class PendingResultPoller {
+
+	private final ScheduledExecutorService scheduler;
+
+	private final long interval;
+
+	private final TimeUnit unit;
+
+	/**
+	 * Creates a poller.
+	 *
+	 * @param scheduler
+	 *            Schedules the polls.
+	 * @param interval
+	 *            Delay between a {@link ResponseAPDU#STATUS_COMMAND_RUNNING}
+	 *            and the next poll.
+	 * @param unit
+	 *            Unit of <code>interval</code>.
+	 */
+	public PendingResultPoller(ScheduledExecutorService scheduler,
+			long interval, TimeUnit unit) {
+		if (interval < 0) {
+			throw new IllegalArgumentException("Interval must not be negative");
+		}
+		this.scheduler = scheduler;
+		this.interval = interval;
+		this.unit = unit;
+	}
+
+	/**
+	 * Sends a command and polls for its result if the card answers
+	 * {@link ResponseAPDU#STATUS_COMMAND_RUNNING}.
+	 *
+	 * @param command
+	 *            The command.
+	 * @param channel
+	 *            Sends a command to the card and returns the future
+	 *            response.
+	 * @return Future of the final response. Cancelling it stops the polls.
+	 */
+	public CompletableFuture<ResponseAPDU> transmit(final CommandAPDU command,
+			final Function<CommandAPDU, ? extends CompletionStage<ResponseAPDU>> channel) {
+		final CompletableFuture<ResponseAPDU> result = new CompletableFuture<>();
+		try {
+			channel.apply(command).whenComplete(
+					new BiConsumer<ResponseAPDU, Throwable>() {
+						@Override
+						public void accept(ResponseAPDU response,
+								Throwable failure) {
+							handle(result, response, failure,
+									command.getCla(), channel);
+						}
+					});
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Polls for the result of a command whose response was
+	 * <code>response</code>.
+	 *
+	 * @param response
+	 *            The response of the command.
+	 * @param cla
+	 *            CLA byte for the {@link CommandAPDU#INS_GET_PENDING_RESULT}
+	 *            commands.
+	 * @param channel
+	 *            Sends a command to the card and returns the future
+	 *            response.
+	 * @return Future of the final response, <code>response</code> itself if
+	 *         it is neither {@link ResponseAPDU#STATUS_COMMAND_RUNNING} nor
+	 *         parcelled. Cancelling it stops the polls.
+	 */
+	public CompletableFuture<ResponseAPDU> await(ResponseAPDU response,
+			byte cla,
+			Function<CommandAPDU, ? extends CompletionStage<ResponseAPDU>> channel) {
+		CompletableFuture<ResponseAPDU> result = new CompletableFuture<>();
+		handle(result, response, null, cla, channel);
+		return result;
+	}
+
+	/**
+	 * Completes <code>result</code> with <code>response</code>, schedules
+	 * the next poll if the command is still running, or fetches the
+	 * remaining parcels if the response is parcelled.
+	 */
+	private void handle(
+			final CompletableFuture<ResponseAPDU> result,
+			ResponseAPDU response,
+			Throwable failure,
+			final byte cla,
+			final Function<CommandAPDU, ? extends CompletionStage<ResponseAPDU>> channel) {
+		if (result.isDone()) {
+			return;
+		}
+		if (failure != null) {
+			result.completeExceptionally(failure);
+			return;
+		}
+		if (response == null) {
+			result.completeExceptionally(new IOException("No response"));
+			return;
+		}
+		if (response.getSW1() == ResponseAPDU.STATUS_B1_OK_BYTES_AVAILABLE) {
+			fetch(result, new ResponseAPDUAssembler(), response, null, cla,
+					channel);
+			return;
+		}
+		if (response.getSW() != (ResponseAPDU.STATUS_COMMAND_RUNNING & 0xFFFF)) {
+			result.complete(response);
+			return;
+		}
+		try {
+			scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					poll(result, cla, channel);
+				}
+			}, interval, unit);
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void poll(
+			final CompletableFuture<ResponseAPDU> result,
+			final byte cla,
+			final Function<CommandAPDU, ? extends CompletionStage<ResponseAPDU>> channel) {
+		if (result.isDone()) {
+			return;
+		}
+		CommandAPDU command = new CommandAPDU(new byte[] { cla,
+				CommandAPDU.INS_GET_PENDING_RESULT, 0x00, 0x00 });
+		try {
+			channel.apply(command).whenComplete(
+					new BiConsumer<ResponseAPDU, Throwable>() {
+						@Override
+						public void accept(ResponseAPDU response,
+								Throwable failure) {
+							handle(result, response, failure, cla, channel);
+						}
+					});
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Adds a parcel to <code>assembler</code> and fetches the next one with
+	 * {@link CommandAPDU#INS_GET_REMAINING_RESULT} until the response is
+	 * complete.
+	 */
+	private void fetch(
+			final CompletableFuture<ResponseAPDU> result,
+			final ResponseAPDUAssembler assembler,
+			ResponseAPDU parcel,
+			Throwable failure,
+			final byte cla,
+			final Function<CommandAPDU, ? extends CompletionStage<ResponseAPDU>> channel) {
+		if (result.isDone()) {
+			return;
+		}
+		if (failure != null) {
+			result.completeExceptionally(failure);
+			return;
+		}
+		if (parcel == null) {
+			result.completeExceptionally(new IOException("No response"));
+			return;
+		}
+		try {
+			if (assembler.add(parcel) == ResponseAPDUAssembler.State.COMPLETE) {
+				result.complete(assembler.toResponseAPDU());
+				return;
+			}
+			// MORE_DATA and RETRY both send the command with the new Le
+			CommandAPDU command = new CommandAPDU(new byte[] { cla,
+					CommandAPDU.INS_GET_REMAINING_RESULT, 0x00, 0x00,
+					(byte) assembler.getNextLe() });
+			channel.apply(command).whenComplete(
+					new BiConsumer<ResponseAPDU, Throwable>() {
+						@Override
+						public void accept(ResponseAPDU response,
+								Throwable failure) {
+							fetch(result, assembler, response, failure, cla,
+									channel);
+						}
+					});
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,371 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import ch.fhnw.imvs.util.BytesTransferConverterUtils;
+
+/**
+ * {@link APDUTransport} for cards behind a remote reader, reached through a
+ * relay with a {@link Link}. Commands are pipelined: They are queued without
+ * waiting for the responses of earlier commands, and all commands queued
+ * while a round trip is in flight are coalesced into a single
+ * {@link BytesTransferConverterUtils} payload for the next round trip. The
+ * relay answers with a payload containing the responses in the same order.
+ * So the number of round trips depends on how fast commands are submitted,
+ * not on their number.
+ *
+ * <p>
+ *
+ * At most one round trip is in flight at a time, so the card processes the
+ * commands in the order they were submitted. The commands waiting for a
+ * round trip are queued without bound and there is no backpressure:
+ * Callers submitting commands faster than the relay answers them have to
+ * limit the number of outstanding futures themselves. Instances of this
+ * class are thread-safe.
+ */
+public final class RelayTransport implements APDUTransport {
+
+	/**
+	 * One round trip to a relay.
+	 */
+	public interface Link {
+
+		/**
+		 * Sends a payload containing Command APDUs to the relay.
+		 *
+		 * @param payload
+		 *            The Command APDUs, converted with
+		 *            {@link BytesTransferConverterUtils#convert(List)}.
+		 * @return Future of the payload containing the Response APDUs in the
+		 *         same format and order.
+		 */
+		CompletableFuture<byte[]> exchange(byte[] payload);
+	}
+
+	/**
+	 * Default maximum number of commands per round trip
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+
+	/**
+	 * A command waiting for its response
+	 */
+	private static final class Pending {
+
+		final CommandAPDU command;
+
+		final CompletableFuture<ResponseAPDU> response = new CompletableFuture<>();
+
+		Pending(CommandAPDU command) {
+			this.command = command;
+		}
+	}
+
+	private final Link link;
+
+	private final int maxBatchSize;
+
+	/**
+	 * Commands not yet sent, not bounded, guarded by <code>this</code>
+	 */
+	private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+
+	/**
+	 * Whether a round trip is in flight, guarded by <code>this</code>
+	 */
+	private boolean inFlight;
+
+	private boolean closed;
+
+	private long roundTrips;
+
+	/**
+	 * Creates a transport using the default maximum batch size.
+	 *
+	 * @param link
+	 *            The link to the relay.
+	 */
+	public RelayTransport(Link link) {
+		this(link, DEFAULT_MAX_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a transport.
+	 *
+	 * @param link
+	 *            The link to the relay.
+	 * @param maxBatchSize
+	 *            Maximum number of commands per round trip.
+	 */
+	public RelayTransport(Link link, int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Invalid batch size: "
+					+ maxBatchSize);
+		}
+		this.link = link;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Returns a link to a relay stand-in in the same process, which passes
+	 * the commands to a session of a {@link CardSimulator}. The commands of a
+	 * payload are processed as a single task on the executor of the
+	 * simulator.
+	 *
+	 * @param simulator
+	 *            The simulator.
+	 * @param session
+	 *            The session the commands are sent in.
+	 * @return The link.
+	 */
+	public static Link loopback(final CardSimulator simulator,
+			final CardSession session) {
+		return new Link() {
+			@Override
+			public CompletableFuture<byte[]> exchange(byte[] payload) {
+				List<CommandAPDU> commands = new ArrayList<>();
+				Iterator<ByteBuffer> frames = BytesTransferConverterUtils
+						.frames(ByteBuffer.wrap(payload));
+				while (frames.hasNext()) {
+					ByteBuffer frame = frames.next();
+					byte[] command = new byte[frame.remaining()];
+					frame.get(command);
+					commands.add(CommandAPDU.adopt(command));
+				}
+				return simulator.transmitAsync(session, commands).thenApply(
+						new Function<List<ResponseAPDU>, byte[]>() {
+							@Override
+							public byte[] apply(List<ResponseAPDU> responses) {
+								long length = 0;
+								for (ResponseAPDU response : responses) {
+									length += BytesTransferConverterUtils.HEADER_LENGTH
+											+ response.length();
+								}
+								ByteBuffer ret = ByteBuffer.allocate(checkPayloadLength(length));
+								for (ResponseAPDU response : responses) {
+									BytesTransferConverterUtils.putHeader(ret,
+											response.length());
+									ret.put(response.array(), 0, response.length());
+								}
+								return ret.array();
+							}
+						});
+			}
+		};
+	}
+
+	@Override
+	public CompletableFuture<ResponseAPDU> transmit(CommandAPDU command) {
+		Pending pending = new Pending(command);
+		enqueue(pending);
+		return pending.response;
+	}
+
+	@Override
+	public CompletableFuture<List<ResponseAPDU>> transmitBatch(
+			List<CommandAPDU> commands) {
+		final List<CompletableFuture<ResponseAPDU>> futures = new ArrayList<>(commands.size());
+		Pending[] batch = new Pending[commands.size()];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new Pending(commands.get(i));
+			futures.add(batch[i].response);
+		}
+		enqueue(batch);
+		return CompletableFuture.allOf(
+				futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(new Function<Void, List<ResponseAPDU>>() {
+					@Override
+					public List<ResponseAPDU> apply(Void unused) {
+						List<ResponseAPDU> ret = new ArrayList<>(futures.size());
+						for (CompletableFuture<ResponseAPDU> future : futures) {
+							ret.add(future.join());
+						}
+						return ret;
+					}
+				});
+	}
+
+	/**
+	 * Queues commands and starts a round trip if none is in flight.
+	 */
+	private void enqueue(Pending... pendings) {
+		List<Pending> batch;
+		synchronized (this) {
+			if (closed) {
+				for (Pending pending : pendings) {
+					pending.response.completeExceptionally(new IOException(
+							"Transport closed"));
+				}
+				return;
+			}
+			for (Pending pending : pendings) {
+				queue.add(pending);
+			}
+			batch = next();
+		}
+		run(batch);
+	}
+
+	/**
+	 * Takes the next batch out of the queue and marks a round trip as in
+	 * flight, guarded by <code>this</code>.
+	 *
+	 * @return The batch, <code>null</code> if a round trip is already in
+	 *         flight or the queue is empty.
+	 */
+	private List<Pending> next() {
+		if (inFlight || queue.isEmpty()) {
+			return null;
+		}
+		inFlight = true;
+		List<Pending> batch = new ArrayList<>(Math.min(queue.size(),
+				maxBatchSize));
+		while (!queue.isEmpty() && batch.size() < maxBatchSize) {
+			batch.add(queue.poll());
+		}
+		return batch;
+	}
+
+	/**
+	 * Sends batches until the queue is empty. Round trips whose reply is
+	 * already available are handled in this loop, so links completing
+	 * synchronously do not nest calls; otherwise the loop is continued by
+	 * the thread completing the reply.
+	 */
+	private void run(List<Pending> batch) {
+		while (batch != null) {
+			CompletableFuture<List<Pending>> next = roundTrip(batch);
+			if (!next.isDone()) {
+				next.thenAccept(new Consumer<List<Pending>>() {
+					@Override
+					public void accept(List<Pending> following) {
+						run(following);
+					}
+				});
+				return;
+			}
+			batch = next.join();
+		}
+	}
+
+	/**
+	 * Sends a batch in one round trip.
+	 *
+	 * @return Future of the next batch to send.
+	 */
+	private CompletableFuture<List<Pending>> roundTrip(final List<Pending> batch) {
+		CompletableFuture<byte[]> reply = null;
+		Throwable failure = null;
+		try {
+			long length = 0;
+			for (Pending pending : batch) {
+				length += BytesTransferConverterUtils.HEADER_LENGTH
+						+ pending.command.array().length;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(checkPayloadLength(length));
+			for (Pending pending : batch) {
+				byte[] command = pending.command.array();
+				BytesTransferConverterUtils.putHeader(payload, command.length);
+				payload.put(command);
+			}
+			reply = link.exchange(payload.array());
+			synchronized (this) {
+				roundTrips++;
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		if (reply == null) {
+			reply = new CompletableFuture<>();
+			reply.completeExceptionally(failure != null ? failure
+					: new IOException("No reply from the relay"));
+		}
+		return reply.handle(new BiFunction<byte[], Throwable, List<Pending>>() {
+			@Override
+			public List<Pending> apply(byte[] payload, Throwable failure) {
+				return complete(batch, payload, failure);
+			}
+		});
+	}
+
+	private static int checkPayloadLength(long length) {
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Payload too long");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Completes the futures of a batch, exceptionally if the round trip
+	 * failed, and takes the next batch out of the queue.
+	 */
+	private List<Pending> complete(List<Pending> batch, byte[] payload,
+			Throwable failure) {
+		try {
+			if (failure == null) {
+				try {
+					List<byte[]> responses = BytesTransferConverterUtils.convert(payload);
+					if (responses.size() != batch.size()) {
+						throw new IOException("Expected " + batch.size()
+								+ " responses, received " + responses.size());
+					}
+					for (int i = 0; i < batch.size(); i++) {
+						byte[] response = responses.get(i);
+						batch.get(i).response.complete(ResponseAPDU.adopt(
+								response, response.length));
+					}
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				for (Pending pending : batch) {
+					pending.response.completeExceptionally(failure);
+				}
+			}
+		} finally {
+			synchronized (this) {
+				inFlight = false;
+			}
+		}
+		synchronized (this) {
+			return next();
+		}
+	}
+
+	/**
+	 * Returns the number of round trips started so far.
+	 *
+	 * @return Number of round trips.
+	 */
+	public synchronized long getRoundTripCount() {
+		return roundTrips;
+	}
+
+	/**
+	 * Fails all commands not yet sent and rejects new ones. Round trips in
+	 * flight are completed normally.
+	 */
+	@Override
+	public void close() {
+		List<Pending> dropped;
+		synchronized (this) {
+			closed = true;
+			dropped = new ArrayList<>(queue);
+			queue.clear();
+		}
+		for (Pending pending : dropped) {
+			pending.response.completeExceptionally(new IOException(
+					"Transport closed"));
+		}
+	}
+}
@@ -1,5 +1,11 @@
 package ch.fhnw.imvs.smartcard;
 
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.NoSuchElementException;
+
 import ch.fhnw.imvs.util.ConverterUtils;
 
 /**
@@ -15,10 +21,22 @@ public class ResponseAPDU {
 
 	private static final short MAXIMUM_STAND_APDU_ARGUMENT_LENGTH = 251;
 
+	/**
+	 * Parcel size used by {@link #getStandardResponseAPDU(int)}
+	 */
+	public static final int DEFAULT_PARCEL_SIZE = MAXIMUM_STAND_APDU_ARGUMENT_LENGTH;
+
+	/**
+	 * Maximum Argument Data length of a non-extended ResponseAPDU
+	 */
+	public static final int MAXIMUM_PARCEL_SIZE = 256;
+
 	public static final short STATUS_OK = (short) 0x9000;
 
 	public static final byte STATUS_B1_OK_BYTES_AVAILABLE = (byte) 0x61;
 
+	public static final byte STATUS_B1_WRONG_LE = (byte) 0x6C;
+
 	public static final short STATUS_UNKNOWN_ERROR = 0x6F00;
 
 	public static final short STATUS_INS_NOT_SUPPORTED = 0x6D00;
@@ -34,6 +52,16 @@ public class ResponseAPDU {
 	 */
 	private final byte[] data;
 
+	/**
+	 * Length of this APDU, <code>data</code> may be longer
+	 */
+	private final int length;
+
+	/**
+	 * Cached hashcode, 0 if not computed yet
+	 */
+	private int hash;
+
 	/**
 	 * Create a ResponseAPDU only with a statuscode
 	 * 
@@ -57,6 +85,39 @@ public class ResponseAPDU {
 		} else {
 			this.data = new byte[0];
 		}
+		length = this.data.length;
+	}
+
+	/**
+	 * Creates a ResponseAPDU object using the first <code>length</code> bytes
+	 * of <code>data</code> without copying them.
+	 * 
+	 * @param data
+	 *            The Bytearray containing the Response APDU, must not be
+	 *            modified afterwards.
+	 * @param length
+	 *            Length of the Response APDU.
+	 * @param unused
+	 *            Distinguishes this constructor from the public ones.
+	 */
+	private ResponseAPDU(byte[] data, int length, boolean unused) {
+		this.data = data;
+		this.length = length;
+	}
+
+	/**
+	 * Creates a ResponseAPDU object using the first <code>length</code> bytes
+	 * of <code>data</code> without copying them.
+	 * 
+	 * @param data
+	 *            The Bytearray containing the Response APDU, must not be
+	 *            modified afterwards.
+	 * @param length
+	 *            Length of the Response APDU.
+	 * @return The ResponseAPDU.
+	 */
+	static ResponseAPDU adopt(byte[] data, int length) {
+		return new ResponseAPDU(data, length, false);
 	}
 
 	/**
@@ -73,8 +134,9 @@ public class ResponseAPDU {
 			body = new byte[0];
 		}
 		data = new byte[body.length + 2];
+		length = data.length;
 		System.arraycopy(body, 0, data, 0, body.length);
-		data[data.length - 1] = (byte) statuscode;
+		data[length - 1] = (byte) statuscode;
 
 		data[getArgumentDataLength()] = (byte) (statuscode >> 8);
 	}
@@ -86,7 +148,7 @@ public class ResponseAPDU {
 	 *         <code>false</code> otherwise.
 	 */
 	public boolean isValidAPDU() {
-		if (data.length > 1) {
+		if (length > 1) {
 			return true;
 		} else {
 			return false;
@@ -118,7 +180,7 @@ public class ResponseAPDU {
 	 * @return the second status byte.
 	 */
 	public byte getStatusByte2() {
-		return data[data.length - 1];
+		return data[length - 1];
 	}
 
 	/**
@@ -127,7 +189,43 @@ public class ResponseAPDU {
 	 * @return status byte.
 	 */
 	public short getStatusBytes() {
-		return (short) ((getStatusByte1() << 8) | getStatusByte2());
+		return (short) getSW();
+	}
+
+	/**
+	 * The status bytes as an unsigned integer, e.g. <code>0x9000</code>.
+	 * 
+	 * @return status word (0 to <code>0xFFFF</code>).
+	 */
+	public int getSW() {
+		return (getSW1() << 8) | getSW2();
+	}
+
+	/**
+	 * The first status byte as an unsigned integer.
+	 * 
+	 * @return the first status byte (0 to <code>0xFF</code>).
+	 */
+	public int getSW1() {
+		return data[length - 2] & 0xFF;
+	}
+
+	/**
+	 * The second status byte as an unsigned integer.
+	 * 
+	 * @return the second status byte (0 to <code>0xFF</code>).
+	 */
+	public int getSW2() {
+		return data[length - 1] & 0xFF;
+	}
+
+	/**
+	 * Classifies the status bytes, see {@link StatusWordCategory#of(int)}.
+	 * 
+	 * @return the category of the status bytes.
+	 */
+	public StatusWordCategory getStatusWordCategory() {
+		return StatusWordCategory.of(getSW());
 	}
 
 	/**
@@ -149,7 +247,7 @@ public class ResponseAPDU {
 	 * @return length of Argument Data
 	 */
 	public int getArgumentDataLength() {
-		int argumentDataLength = data.length - 2;
+		int argumentDataLength = length - 2;
 		if (argumentDataLength < 0) {
 			return 0;
 		}
@@ -162,11 +260,26 @@ public class ResponseAPDU {
 	 * @return A Copy of the <code>byte[]</code>-Representation of this APDU.
 	 */
 	public byte[] getRaw() {
-		byte[] ret = new byte[data.length];
-		System.arraycopy(data, 0, ret, 0, data.length);
+		byte[] ret = new byte[length];
+		System.arraycopy(data, 0, ret, 0, length);
 		return ret;
 	}
 
+	/**
+	 * Returns the array containing this APDU in its first {@link #length()}
+	 * bytes, without copying it. Must not be modified.
+	 */
+	byte[] array() {
+		return data;
+	}
+
+	/**
+	 * Returns the length of this APDU in {@link #array()}.
+	 */
+	int length() {
+		return length;
+	}
+
 	/**
 	 * Returns a non-extended ResponseAPDU. The status bytes indicate if more
 	 * ResponseAPDU are following.
@@ -177,48 +290,372 @@ public class ResponseAPDU {
 	 * @return A non-extended {@link ResponseAPDU}.
 	 */
 	public ResponseAPDU getStandardResponseAPDU(int parcelNumber) {
-		if (parcelNumber < 0 || parcelNumber >= getStandardResponseAPDUCount()) {
-			throw new IndexOutOfBoundsException(String.valueOf(parcelNumber));
-		}
-		if (!isExtendedAPDU()) {
+		return getStandardResponseAPDU(parcelNumber, DEFAULT_PARCEL_SIZE);
+	}
+
+	/**
+	 * Returns a non-extended ResponseAPDU containing at most
+	 * <code>parcelSize</code> bytes of Argument Data. The status bytes
+	 * indicate if more ResponseAPDU are following.
+	 * 
+	 * @param parcelNumber
+	 *            Number of the parcel, starting from zero.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @return A non-extended {@link ResponseAPDU}, this APDU if it fits into
+	 *         one parcel.
+	 */
+	public ResponseAPDU getStandardResponseAPDU(int parcelNumber, int parcelSize) {
+		checkParcel(parcelNumber, parcelSize);
+		if (getArgumentDataLength() <= parcelSize) {
 			return this;
 		}
+		byte[] parcel = new byte[getStandardResponseAPDULength(parcelNumber, parcelSize)];
+		writeStandardResponseAPDU(parcelNumber, parcelSize, parcel, 0);
+		return adopt(parcel, parcel.length);
+	}
 
-		int argumentDataLength = getArgumentDataLength();
-		int startPosition = parcelNumber * MAXIMUM_STAND_APDU_ARGUMENT_LENGTH;
-		int length = Math.min(argumentDataLength - startPosition, MAXIMUM_STAND_APDU_ARGUMENT_LENGTH);
+	public int getStandardResponseAPDUCount() {
+		return getStandardResponseAPDUCount(DEFAULT_PARCEL_SIZE);
+	}
 
-		byte[] argumentData = new byte[length];
-		System.arraycopy(data, startPosition, argumentData, 0, length);
+	/**
+	 * Returns the number of parcels needed to transfer this APDU with at most
+	 * <code>parcelSize</code> bytes of Argument Data each.
+	 * 
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @return Number of parcels, at least 1.
+	 */
+	public int getStandardResponseAPDUCount(int parcelSize) {
+		checkParcelSize(parcelSize);
+		return ((getArgumentDataLength() - 1) / parcelSize) + 1;
+	}
 
-		short statusBytes;
+	/**
+	 * Returns the length of a parcel, including the status bytes.
+	 * 
+	 * @param parcelNumber
+	 *            Number of the parcel, starting from zero.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @return Length of the parcel.
+	 */
+	public int getStandardResponseAPDULength(int parcelNumber, int parcelSize) {
+		checkParcel(parcelNumber, parcelSize);
+		return getParcelArgumentDataLength(parcelNumber, parcelSize) + 2;
+	}
 
-		int nextParcelStartPosition = startPosition + length;
-		int nextParcelLength = Math.min(argumentDataLength - nextParcelStartPosition,
-				MAXIMUM_STAND_APDU_ARGUMENT_LENGTH);
-		if (nextParcelLength > 0) {
-			statusBytes = (short) ((STATUS_B1_OK_BYTES_AVAILABLE << 8) | nextParcelLength);
+	/**
+	 * Writes a parcel (Argument Data and status bytes) into <code>dst</code>,
+	 * starting at <code>offset</code>. The status bytes are <code>61xx</code>
+	 * if more parcels are following, where <code>xx</code> is the length of
+	 * the next parcel (<code>00</code> for 256), and the status bytes of this
+	 * APDU for the last parcel.
+	 * 
+	 * @param parcelNumber
+	 *            Number of the parcel, starting from zero.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Start of the parcel in <code>dst</code>.
+	 * @return Number of bytes written.
+	 * @throws IndexOutOfBoundsException
+	 *             If the parcel does not exist or does not fit into
+	 *             <code>dst</code>.
+	 */
+	public int writeStandardResponseAPDU(int parcelNumber, int parcelSize,
+			byte[] dst, int offset) {
+		int length = getStandardResponseAPDULength(parcelNumber, parcelSize);
+		if (offset < 0 || length > dst.length - offset) {
+			throw new IndexOutOfBoundsException(
+					"Parcel does not fit into the destination");
+		}
+		int bodyLength = length - 2;
+		System.arraycopy(data, parcelNumber * parcelSize, dst, offset, bodyLength);
+		short statusBytes = getParcelStatusBytes(parcelNumber, parcelSize);
+		ConverterUtils.putShort(dst, offset + bodyLength, statusBytes);
+		return length;
+	}
+
+	/**
+	 * Writes a parcel into <code>dst</code> at its current position, see
+	 * {@link #writeStandardResponseAPDU(int, int, byte[], int)}. The position
+	 * is advanced by the number of bytes written.
+	 * 
+	 * @param parcelNumber
+	 *            Number of the parcel, starting from zero.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @param dst
+	 *            The destination buffer.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException
+	 *             If the parcel does not fit into <code>dst</code>.
+	 */
+	public int writeStandardResponseAPDU(int parcelNumber, int parcelSize,
+			ByteBuffer dst) {
+		int length = getStandardResponseAPDULength(parcelNumber, parcelSize);
+		if (length > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		short statusBytes = getParcelStatusBytes(parcelNumber, parcelSize);
+		dst.put(data, parcelNumber * parcelSize, length - 2);
+		dst.put((byte) (statusBytes >> 8));
+		dst.put((byte) statusBytes);
+		return length;
+	}
+
+	/**
+	 * Writes a parcel to <code>channel</code>, see
+	 * {@link #writeStandardResponseAPDU(int, int, byte[], int)}. The Argument
+	 * Data is written directly from this APDU, without copying it.
+	 * 
+	 * @param parcelNumber
+	 *            Number of the parcel, starting from zero.
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @param channel
+	 *            The destination channel.
+	 * @return Number of bytes written.
+	 * @throws IOException
+	 *             If writing to the channel fails.
+	 */
+	public int writeStandardResponseAPDU(int parcelNumber, int parcelSize,
+			WritableByteChannel channel) throws IOException {
+		int length = getStandardResponseAPDULength(parcelNumber, parcelSize);
+		int start = parcelNumber * parcelSize;
+		boolean last = parcelNumber == getStandardResponseAPDUCount(parcelSize) - 1;
+		if (last) {
+			// Argument Data and status bytes of the last parcel are contiguous
+			writeFully(channel, ByteBuffer.wrap(data, start, length));
 		} else {
-			statusBytes = getStatusBytes();
+			writeFully(channel, ByteBuffer.wrap(data, start, length - 2));
+			ByteBuffer statusBytes = ByteBuffer.allocate(2);
+			statusBytes.putShort(0, getParcelStatusBytes(parcelNumber, parcelSize));
+			writeFully(channel, statusBytes);
 		}
-		return new ResponseAPDU(argumentData, statusBytes);
+		return length;
 	}
 
-	public int getStandardResponseAPDUCount() {
-		return ((getArgumentDataLength() - 1) / MAXIMUM_STAND_APDU_ARGUMENT_LENGTH) + 1;
+	/**
+	 * Returns a {@link ParcelWriter} writing the parcels of this APDU one
+	 * after the other.
+	 * 
+	 * @param parcelSize
+	 *            Maximum length of the Argument Data of a parcel (1 to
+	 *            {@value #MAXIMUM_PARCEL_SIZE}).
+	 * @return The writer, positioned before the first parcel.
+	 */
+	public ParcelWriter getParcelWriter(int parcelSize) {
+		checkParcelSize(parcelSize);
+		return new ParcelWriter(parcelSize);
+	}
+
+	/**
+	 * Writes the parcels of a {@link ResponseAPDU} one after the other into
+	 * caller-supplied arrays, buffers or channels, see
+	 * {@link ResponseAPDU#writeStandardResponseAPDU(int, int, byte[], int)}.
+	 * No intermediate arrays or APDUs are created.
+	 */
+	public final class ParcelWriter {
+
+		private final int parcelSize;
+
+		private final int count;
+
+		private int next;
+
+		private ParcelWriter(int parcelSize) {
+			this.parcelSize = parcelSize;
+			this.count = getStandardResponseAPDUCount(parcelSize);
+		}
+
+		/**
+		 * Returns whether parcels are left to be written.
+		 * 
+		 * @return <code>true</code> if not all parcels were written.
+		 */
+		public boolean hasNext() {
+			return next < count;
+		}
+
+		/**
+		 * Returns the length of the next parcel, including the status bytes.
+		 * 
+		 * @return Length of the next parcel.
+		 * @throws NoSuchElementException
+		 *             If all parcels were written.
+		 */
+		public int getNextLength() {
+			checkNext();
+			return getStandardResponseAPDULength(next, parcelSize);
+		}
+
+		/**
+		 * Writes the next parcel into <code>dst</code>, starting at
+		 * <code>offset</code>.
+		 * 
+		 * @param dst
+		 *            The destination array.
+		 * @param offset
+		 *            Start of the parcel in <code>dst</code>.
+		 * @return Number of bytes written.
+		 * @throws NoSuchElementException
+		 *             If all parcels were written.
+		 */
+		public int writeNext(byte[] dst, int offset) {
+			checkNext();
+			int ret = writeStandardResponseAPDU(next, parcelSize, dst, offset);
+			next++;
+			return ret;
+		}
+
+		/**
+		 * Writes the next parcel into <code>dst</code> at its current
+		 * position.
+		 * 
+		 * @param dst
+		 *            The destination buffer.
+		 * @return Number of bytes written.
+		 * @throws NoSuchElementException
+		 *             If all parcels were written.
+		 */
+		public int writeNext(ByteBuffer dst) {
+			checkNext();
+			int ret = writeStandardResponseAPDU(next, parcelSize, dst);
+			next++;
+			return ret;
+		}
+
+		/**
+		 * Writes the next parcel to <code>channel</code>.
+		 * 
+		 * @param channel
+		 *            The destination channel.
+		 * @return Number of bytes written.
+		 * @throws IOException
+		 *             If writing to the channel fails.
+		 * @throws NoSuchElementException
+		 *             If all parcels were written.
+		 */
+		public int writeNext(WritableByteChannel channel) throws IOException {
+			checkNext();
+			int ret = writeStandardResponseAPDU(next, parcelSize, channel);
+			next++;
+			return ret;
+		}
+
+		private void checkNext() {
+			if (next >= count) {
+				throw new NoSuchElementException();
+			}
+		}
+	}
+
+	private void checkParcel(int parcelNumber, int parcelSize) {
+		if (parcelNumber < 0 || parcelNumber >= getStandardResponseAPDUCount(parcelSize)) {
+			throw new IndexOutOfBoundsException(String.valueOf(parcelNumber));
+		}
+	}
+
+	private static void checkParcelSize(int parcelSize) {
+		if (parcelSize < 1 || parcelSize > MAXIMUM_PARCEL_SIZE) {
+			throw new IllegalArgumentException("Invalid parcel size: " + parcelSize);
+		}
+	}
+
+	private int getParcelArgumentDataLength(int parcelNumber, int parcelSize) {
+		return Math.min(getArgumentDataLength() - parcelNumber * parcelSize, parcelSize);
+	}
+
+	private short getParcelStatusBytes(int parcelNumber, int parcelSize) {
+		if (parcelNumber < getStandardResponseAPDUCount(parcelSize) - 1) {
+			int nextParcelLength = getParcelArgumentDataLength(parcelNumber + 1, parcelSize);
+			return (short) ((STATUS_B1_OK_BYTES_AVAILABLE << 8) | (nextParcelLength & 0xFF));
+		}
+		return getStatusBytes();
+	}
+
+	private static void writeFully(WritableByteChannel channel, ByteBuffer src)
+			throws IOException {
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
 	}
 
 	/**
-	 * Returns true if the underlying bytearray is equal.
+	 * Returns true if the raw bytes of both APDUs are equal.
 	 */
 	@Override
 	public boolean equals(Object o) {
-		return (o instanceof ResponseAPDU) && data.equals(((ResponseAPDU) o).data);
+		if (o == this)
+			return true;
+		if (!(o instanceof ResponseAPDU))
+			return false;
+		ResponseAPDU other = (ResponseAPDU) o;
+		if (hash != 0 && other.hash != 0 && hash != other.hash)
+			return false;
+		return other.contentEquals(data, 0, length);
+	}
+
+	/**
+	 * Hashcode based on the raw bytes, consistent with
+	 * {@link #equals(Object)}. Equal to <code>Arrays.hashCode(getRaw())</code>
+	 * and computed only once.
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 1;
+			for (int i = 0; i < length; i++) {
+				h = 31 * h + data[i];
+			}
+			hash = h;
+		}
+		return h;
+	}
+
+	/**
+	 * Compares this APDU with the raw bytes of an APDU in a region of a
+	 * bytearray, without creating an object for them.
+	 * 
+	 * @param other
+	 *            Bytearray containing the APDU to compare with.
+	 * @param offset
+	 *            Start of the APDU in <code>other</code>.
+	 * @param length
+	 *            Length of the APDU.
+	 * @return <code>true</code> if the region contains exactly the raw bytes
+	 *         of this APDU.
+	 * @throws IndexOutOfBoundsException
+	 *             If the region is not inside of <code>other</code>.
+	 */
+	public boolean contentEquals(byte[] other, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > other.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length != this.length)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (data[i] != other[offset + i])
+				return false;
+		}
+		return true;
 	}
 
 	@Override
 	public String toString() {
-		return ConverterUtils.toHexString(getRaw());
+		return ConverterUtils.toHexString(data, 0, length, 0);
 	}
 
 }
@@ -0,0 +1,262 @@
+package ch.fhnw.imvs.smartcard;
+
+/**
+ * Joins the parcels of a response split with <code>61xx</code> status words
+ * (see {@link ResponseAPDU#getStandardResponseAPDU(int)}) back into one
+ * {@link ResponseAPDU}. The parcels are added one after the other as they
+ * are received; the status word of each parcel tells the caller what to do
+ * next, see {@link State}:
+ * <ul>
+ * <li><code>61xx</code>: The body is appended, the next parcel can be
+ * fetched with Le <code>xx</code> ({@link State#MORE_DATA}).
+ * <li><code>6Cxx</code>: The body is discarded, the last command has to be
+ * repeated with Le <code>xx</code> ({@link State#RETRY}).
+ * <li>Any other status word: The body is appended and the response is
+ * complete ({@link State#COMPLETE}).
+ * </ul>
+ *
+ * <p>
+ *
+ * The bodies are appended into one buffer which grows by doubling, so
+ * adding a parcel takes amortized constant time per byte. The completed
+ * response is created on top of this buffer without copying it again; the
+ * assembler then starts over with a new buffer.
+ *
+ * <p>
+ *
+ * Instances of this class are not thread-safe.
+ */
+public final class ResponseAPDUAssembler {
+
+	/**
+	 * What the caller has to do after a parcel was added.
+	 */
+	public enum State {
+		/**
+		 * More data is available and has to be fetched, see
+		 * {@link ResponseAPDUAssembler#getNextLe()}.
+		 */
+		MORE_DATA,
+
+		/**
+		 * The last command has to be repeated with the Le given by
+		 * {@link ResponseAPDUAssembler#getNextLe()}.
+		 */
+		RETRY,
+
+		/**
+		 * The response is complete, see
+		 * {@link ResponseAPDUAssembler#toResponseAPDU()}.
+		 */
+		COMPLETE
+	}
+
+	private static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Initial capacity of the buffer
+	 */
+	private final int initialCapacity;
+
+	/**
+	 * Buffer containing the bodies added so far, allocated on first use
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Number of bytes used in <code>buffer</code>
+	 */
+	private int length;
+
+	/**
+	 * State after the last parcel, null if no parcel was added
+	 */
+	private State state;
+
+	/**
+	 * Le for the next command, see {@link #getNextLe()}
+	 */
+	private int nextLe;
+
+	/**
+	 * Creates an assembler.
+	 */
+	public ResponseAPDUAssembler() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an assembler with a given initial buffer capacity, e.g. the
+	 * expected length of the joined response.
+	 *
+	 * @param initialCapacity
+	 *            Initial capacity of the buffer in bytes.
+	 */
+	public ResponseAPDUAssembler(int initialCapacity) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException(
+					"Capacity must not be negative");
+		}
+		// Room for the status bytes
+		this.initialCapacity = initialCapacity + 2;
+	}
+
+	/**
+	 * Adds a received parcel.
+	 *
+	 * @param parcel
+	 *            The parcel.
+	 * @return What to do next.
+	 * @throws IllegalArgumentException
+	 *             If the parcel is not a valid APDU.
+	 * @throws IllegalStateException
+	 *             If the response is already complete.
+	 */
+	public State add(ResponseAPDU parcel) {
+		if (!parcel.isValidAPDU()) {
+			throw new IllegalArgumentException("Invalid Response APDU");
+		}
+		return add(parcel.array(), 0, parcel.length());
+	}
+
+	/**
+	 * Adds a received parcel given as raw bytes.
+	 *
+	 * @param parcel
+	 *            The bytearray containing the parcel.
+	 * @return What to do next.
+	 */
+	public State add(byte[] parcel) {
+		return add(parcel, 0, parcel.length);
+	}
+
+	/**
+	 * Adds a received parcel given as region of a bytearray. The body is
+	 * copied, the region can be reused afterwards.
+	 *
+	 * @param data
+	 *            Bytearray containing the parcel.
+	 * @param offset
+	 *            Start of the parcel in <code>data</code>.
+	 * @param length
+	 *            Length of the parcel, including the status bytes.
+	 * @return What to do next.
+	 * @throws IllegalArgumentException
+	 *             If the parcel is shorter than two bytes.
+	 * @throws IllegalStateException
+	 *             If the response is already complete.
+	 */
+	public State add(byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (length < 2) {
+			throw new IllegalArgumentException("Invalid Response APDU");
+		}
+		if (state == State.COMPLETE) {
+			throw new IllegalStateException("Response is already complete");
+		}
+		byte sw1 = data[offset + length - 2];
+		byte sw2 = data[offset + length - 1];
+		if (sw1 == ResponseAPDU.STATUS_B1_WRONG_LE) {
+			nextLe = sw2 & 0xFF;
+			state = State.RETRY;
+			return state;
+		}
+		int bodyLength = length - 2;
+		ensureCapacity(this.length + bodyLength + 2);
+		System.arraycopy(data, offset, buffer, this.length, bodyLength);
+		this.length += bodyLength;
+		if (sw1 == ResponseAPDU.STATUS_B1_OK_BYTES_AVAILABLE) {
+			// 0x00 means 256 bytes or more
+			nextLe = sw2 & 0xFF;
+			state = State.MORE_DATA;
+		} else {
+			buffer[this.length] = sw1;
+			buffer[this.length + 1] = sw2;
+			nextLe = 0;
+			state = State.COMPLETE;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the state after the last parcel.
+	 *
+	 * @return The state, <code>null</code> if no parcel was added yet.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns whether the response is complete.
+	 *
+	 * @return <code>true</code> if a parcel with a final status word was
+	 *         added.
+	 */
+	public boolean isComplete() {
+		return state == State.COMPLETE;
+	}
+
+	/**
+	 * Returns the Le (SW2 of the last parcel) to use for the next command if
+	 * the state is {@link State#MORE_DATA} or {@link State#RETRY}. As in the
+	 * Le field, <code>0</code> is to be interpreted as 256.
+	 *
+	 * @return The Le, 0 if the response is complete.
+	 */
+	public int getNextLe() {
+		return nextLe;
+	}
+
+	/**
+	 * Returns the length of the bodies added so far.
+	 *
+	 * @return Number of bytes of Argument Data.
+	 */
+	public int getArgumentDataLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the joined response and resets this assembler. The response
+	 * uses the buffer of this assembler, no copy is made.
+	 *
+	 * @return The joined response, with the status word of the last parcel.
+	 * @throws IllegalStateException
+	 *             If the response is not complete.
+	 */
+	public ResponseAPDU toResponseAPDU() {
+		if (state != State.COMPLETE) {
+			throw new IllegalStateException("Response is not complete");
+		}
+		ResponseAPDU ret = ResponseAPDU.adopt(buffer, length + 2);
+		buffer = null;
+		reset();
+		return ret;
+	}
+
+	/**
+	 * Discards all parcels added so far.
+	 */
+	public void reset() {
+		length = 0;
+		state = null;
+		nextLe = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buffer == null) {
+			buffer = new byte[Math.max(initialCapacity, capacity)];
+		} else if (capacity > buffer.length) {
+			int newCapacity = buffer.length * 2;
+			if (newCapacity < capacity || newCapacity < 0) {
+				newCapacity = capacity;
+			}
+			byte[] newBuffer = new byte[newCapacity];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package ch.fhnw.imvs.smartcard;
+
+/**
+ * Categories of the status bytes of a {@link ResponseAPDU} as defined by
+ * their first byte (SW1) in ISO 7816-4. The category of a status word is
+ * looked up in a table indexed by SW1, see {@link #of(int)}.
+ */
+public enum StatusWordCategory {
+
+	/**
+	 * <code>90xx</code>: Normal processing, command successfully executed.
+	 */
+	SUCCESS,
+
+	/**
+	 * <code>61xx</code>: Normal processing, <code>xx</code> further bytes
+	 * are available.
+	 */
+	BYTES_AVAILABLE,
+
+	/**
+	 * <code>62xx</code>, <code>63xx</code>: Warning processing.
+	 */
+	WARNING,
+
+	/**
+	 * <code>6Cxx</code>: Wrong Le field, the command has to be repeated with
+	 * Le <code>xx</code>.
+	 */
+	WRONG_LENGTH_RETRY,
+
+	/**
+	 * <code>64xx</code> to <code>66xx</code>: Execution error.
+	 */
+	EXECUTION_ERROR,
+
+	/**
+	 * <code>67xx</code> to <code>6Fxx</code> except <code>6Cxx</code>:
+	 * Checking error.
+	 */
+	CHECKING_ERROR,
+
+	/**
+	 * <code>91xx</code> to <code>9Fxx</code>: Proprietary, e.g.
+	 * {@link ResponseAPDU#STATUS_COMMAND_RUNNING}.
+	 */
+	PROPRIETARY,
+
+	/**
+	 * SW1 is not <code>6X</code> or <code>9X</code>.
+	 */
+	INVALID;
+
+	/**
+	 * Category of each SW1
+	 */
+	private static final StatusWordCategory[] CATEGORIES = new StatusWordCategory[256];
+
+	static {
+		for (int sw1 = 0; sw1 < CATEGORIES.length; sw1++) {
+			StatusWordCategory category;
+			if (sw1 == 0x90) {
+				category = SUCCESS;
+			} else if (sw1 == 0x61) {
+				category = BYTES_AVAILABLE;
+			} else if (sw1 == 0x62 || sw1 == 0x63) {
+				category = WARNING;
+			} else if (sw1 == 0x6C) {
+				category = WRONG_LENGTH_RETRY;
+			} else if (sw1 >= 0x64 && sw1 <= 0x66) {
+				category = EXECUTION_ERROR;
+			} else if (sw1 >= 0x67 && sw1 <= 0x6F) {
+				category = CHECKING_ERROR;
+			} else if (sw1 >= 0x91 && sw1 <= 0x9F) {
+				category = PROPRIETARY;
+			} else {
+				category = INVALID;
+			}
+			CATEGORIES[sw1] = category;
+		}
+	}
+
+	/**
+	 * Returns the category of a status word.
+	 *
+	 * @param sw
+	 *            The status word, only the last two bytes are used (e.g. the
+	 *            value of {@link ResponseAPDU#getSW()} or
+	 *            {@link ResponseAPDU#getStatusBytes()}).
+	 * @return The category.
+	 */
+	public static StatusWordCategory of(int sw) {
+		return CATEGORIES[(sw >>> 8) & 0xFF];
+	}
+
+	/**
+	 * Returns whether this category indicates an error.
+	 *
+	 * @return <code>true</code> for {@link #EXECUTION_ERROR},
+	 *         {@link #CHECKING_ERROR} and {@link #INVALID}.
+	 */
+	public boolean isError() {
+		return this == EXECUTION_ERROR || this == CHECKING_ERROR
+				|| this == INVALID;
+	}
+}
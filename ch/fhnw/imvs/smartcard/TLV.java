@@ -1,15 +1,32 @@
 package ch.fhnw.imvs.smartcard;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import ch.fhnw.imvs.util.ConverterUtils;
+
 /**
  * Immutable class representing a BERTLV-Formatted message. The constructor
  * takes a bytearray, reads the data to fill the fields of this class and
  * recursively create children as necessary.
  * 
+ * <p>
+ * 
+ * Each TLV only stores a reference to a bytearray and the offsets of its
+ * fields. TLVs created by the constructors reference a private copy of the
+ * encoded message, TLVs created by {@link #wrap(byte[], int)} reference the
+ * bytearray of the caller without copying it.
+ * 
+ * <p>
+ * 
+ * Both the definite and the indefinite length form are supported. Composed
+ * TLVs of indefinite length end with the End-of-contents octets
+ * (<code>00 00</code>), which are part of the raw bytes of the TLV but not a
+ * child of it.
+ * 
  * @author Christof Arnosti (christof.arnosti@fhnw.ch)
  * 
  */
@@ -24,25 +41,55 @@ public final class TLV {
 	@SuppressWarnings("unused")
 	private static final int CLASS_PRIVATE = 0x0C;
 
-	private static final int IDENTIFIER_MASK = 0x1F;
-	private static final int LENGTH_MASK = 0x80;
+	static final int IDENTIFIER_MASK = 0x1F;
+	static final int LENGTH_MASK = 0x80;
+
+	static final int CONSTRUCTED_MASK = 0x20;
 
-	private static final int CONSTRUCTED_MASK = 0x20;
+	/**
+	 * Minimal number of children for which lookups by Type use an index.
+	 */
+	private static final int TAG_INDEX_THRESHOLD = 8;
+
+	/**
+	 * Returned by {@link #getTag()} for Type fields longer than 8 bytes.
+	 */
+	public static final long TAG_TOO_LONG = -1;
 
 	/**
-	 * Contains the header bytes
+	 * The bytearray containing the encoding of this TLV. This is either a
+	 * private copy (shared with all children) or, for views created by
+	 * {@link #wrap(byte[], int)}, the array supplied by the caller.
 	 */
-	private final byte[] header;
+	private final byte[] data;
 
 	/**
-	 * If this TLV has children: A List of children, null otherwise
+	 * Start of this TLV (first Type byte) in <code>data</code>
 	 */
-	private final List<TLV> children;
+	private final int offset;
 
 	/**
-	 * If this TLV has no children: The content, null otherwise
+	 * If this TLV has children: A unmodifiable List of children, null otherwise
+	 * or if the children of a lazy TLV were not decoded yet. Use
+	 * {@link #children()} to access the children.
 	 */
-	private final byte[] content;
+	private volatile List<TLV> children;
+
+	/**
+	 * Index of the children by their Type, built on the first lookup by
+	 * {@link #tagIndex()} if there are enough children
+	 */
+	private volatile TagIndex tagIndex;
+
+	/**
+	 * Cached hashcode, 0 if not computed yet
+	 */
+	private int hash;
+
+	/**
+	 * Decode the children on first access instead of in the constructor
+	 */
+	private final boolean lazy;
 
 	/**
 	 * Distinguish primitive from composed TLV
@@ -54,11 +101,42 @@ public final class TLV {
 	 */
 	private final int typelength;
 
+	/**
+	 * The Type field as number, see {@link #getTag()}
+	 */
+	private final long tag;
+
 	/**
 	 * Length of the Length part of the header
 	 */
 	private final int lengthlength;
 
+	/**
+	 * Length of the Value part as decoded from the Length part of the header.
+	 * For indefinite length: Length of the contents without the
+	 * End-of-contents octets.
+	 */
+	private final int valuelength;
+
+	/**
+	 * Whether the Length part is the indefinite form, i.e. the contents are
+	 * terminated by End-of-contents octets (00 00)
+	 */
+	private final boolean indefinite;
+
+	/**
+	 * Value lengths of the nested indefinite length TLVs, recorded by the
+	 * outermost indefinite length ancestor (or this TLV) and shared with
+	 * the descendants, null if there are none
+	 */
+	private final IndefiniteLengths nested;
+
+	/**
+	 * Index in <code>data</code> the offsets in <code>nested</code> are
+	 * relative to
+	 */
+	private final int nestedBase;
+
 	/**
 	 * Default Constructor. Tries to construct a TLV Object out of the data,
 	 * starting with byte 0 until the end.
@@ -71,210 +149,550 @@ public final class TLV {
 	}
 
 	/**
-	 * Returns the length of the byte-representation of this TLV, including
-	 * header and value.
+	 * This constructor returns a TLV-Object representing the TLV-Formatted
+	 * message at position <code>offset</code> in the <code>data</code>
+	 * -bytearray. The bytes of the message are copied once, the created TLV
+	 * and all its children share this copy.
 	 * 
-	 * @return Length of this TLV.
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message.
+	 * @param offset
+	 *            Start of the TLV-Formatted message in the data-bytearray.
+	 * @throws IllegalArgumentException
+	 *             If data is <code>null</code> or does not contain a valid
+	 *             TLV at <code>offset</code>.
 	 */
-	public int getLength() {
-		if (children == null) {
-			return content.length + header.length;
-		} else {
-			int ret = header.length;
-			for (TLV child : children) {
-				ret += child.getLength();
-			}
-			return ret;
-		}
+	public TLV(byte[] data, int offset) {
+		this(data, offset, false);
 	}
 
 	/**
-	 * Returns the length of the value of this TLV as reported in the TLV
-	 * header.
+	 * Same as {@link #TLV(byte[], int)}, but optionally decodes the children
+	 * lazily.
 	 * 
-	 * @return Length of the value.
+	 * <p>
+	 * 
+	 * In lazy mode only the header of the TLV is decoded by the constructor.
+	 * The children of a composed TLV are decoded on the first call to
+	 * {@link #getChildren()}, {@link #getChildByNumber(int)} or
+	 * {@link #getChildByTag(byte[])} (or any other method needing them), and
+	 * are lazy themselves. Errors in the encoding of the children are
+	 * therefore reported by these methods and not by the constructor.
+	 * 
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message.
+	 * @param offset
+	 *            Start of the TLV-Formatted message in the data-bytearray.
+	 * @param lazy
+	 *            <code>true</code> to decode children on first access.
+	 * @throws IllegalArgumentException
+	 *             If data is <code>null</code> or does not contain a valid
+	 *             TLV at <code>offset</code>.
 	 */
-	private int getValueLength() {
-		return header[header.length - 1] & 0xff;
+	public TLV(byte[] data, int offset, boolean lazy) {
+		this(data, offset, data == null ? 0 : data.length, true, lazy, null, 0);
 	}
 
 	/**
-	 * Returns a copy of the content (Value) of this TLV, if this TLV does not
-	 * contain children.
+	 * Parses the TLV at <code>offset</code>. The TLV (including its
+	 * children) must end before <code>limit</code>.
 	 * 
-	 * @return copy of the content.
-	 * @throws IllegalStateException
-	 *             If this TLV has children
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message.
+	 * @param offset
+	 *            Start of the TLV-Formatted message in the data-bytearray.
+	 * @param limit
+	 *            End (exclusive) of the region the TLV must lie in.
+	 * @param copy
+	 *            <code>true</code> to copy the region of this TLV into a
+	 *            private array, <code>false</code> to reference
+	 *            <code>data</code> directly.
+	 * @param lazy
+	 *            <code>true</code> to decode children on first access.
+	 * @param nested
+	 *            Lengths of the indefinite length TLVs recorded by an
+	 *            ancestor, or null.
+	 * @param nestedBase
+	 *            Index in <code>data</code> the offsets in
+	 *            <code>nested</code> are relative to.
 	 */
-	public byte[] getContent() {
-		if (hasChildren)
-			throw new IllegalStateException(
-					"Method cannot be called on a TLV with children");
-		return Arrays.copyOf(content, content.length);
+	private TLV(byte[] data, int offset, int limit, boolean copy, boolean lazy,
+			IndefiniteLengths nested, int nestedBase) {
+		if (data == null) {
+			throw new IllegalArgumentException("Data is not allowed to be null");
+		}
+		if (offset < 0 || limit - offset < 2) {
+			throw new IllegalArgumentException(
+					"data must at least contain two more bytes after offset");
+		}
+
+		typelength = readTypeLength(data, offset, limit);
+		tag = readTag(data, offset, typelength);
+		lengthlength = readLengthLength(data, offset + typelength, limit);
+		hasChildren = (data[offset] & CONSTRUCTED_MASK) == CONSTRUCTED_MASK;
+		indefinite = isIndefiniteLength(data, offset + typelength);
+		if (!indefinite) {
+			valuelength = readValueLength(data, offset + typelength);
+			if (valuelength > limit - offset - typelength - lengthlength) {
+				throw new IllegalArgumentException(
+						"Length of value exceeds the available data");
+			}
+		} else if (hasChildren) {
+			int valueoffset = offset + typelength + lengthlength;
+			int length = nested != null ? nested.get(valueoffset - nestedBase)
+					: IndefiniteLengths.NONE;
+			if (length == IndefiniteLengths.NONE) {
+				// Outermost indefinite length TLV, scan the contents once
+				nested = new IndefiniteLengths();
+				nestedBase = offset;
+				length = readIndefiniteValueLength(data, valueoffset, limit,
+						nested, nestedBase);
+			}
+			valuelength = length;
+		} else {
+			throw new IllegalArgumentException(
+					"Indefinite length not allowed for primitive TLV");
+		}
+
+		if (copy) {
+			this.data = Arrays.copyOfRange(data, offset, offset + getLength());
+			this.offset = 0;
+			this.nestedBase = nestedBase - offset;
+		} else {
+			this.data = data;
+			this.offset = offset;
+			this.nestedBase = nestedBase;
+		}
+		this.nested = nested == null || nested.isEmpty() ? null : nested;
+
+		this.lazy = lazy;
+
+		// Element with children
+		if (hasChildren && !lazy) {
+			children = decodeChildren();
+		}
 	}
 
 	/**
-	 * Returns a bytearray containing the byte representation of this TLV.
+	 * Decodes the children of this TLV out of its value.
 	 * 
-	 * @return bytearray containing this TLV.
+	 * @return unmodifiable list of the children.
 	 */
-	public byte[] getRaw() {
-		byte[] ret = new byte[getLength()];
-		if (hasChildren) {
-			int i = header.length;
-			System.arraycopy(header, 0, ret, 0, header.length);
-			for (TLV child : children) {
-				int length = child.getLength();
-				System.arraycopy(child.getRaw(), 0, ret, i, length);
-				i += length;
+	private List<TLV> decodeChildren() {
+		List<TLV> list = new ArrayList<TLV>();
+		int childoffset = getValueOffset();
+		int end = childoffset + valuelength;
+		while (childoffset < end) {
+			if (end - childoffset < 2) {
+				throw new IllegalArgumentException(
+						"Size of children not correct");
 			}
-		} else {
-			System.arraycopy(header, 0, ret, 0, header.length);
-			System.arraycopy(content, 0, ret, header.length, content.length);
+			TLV child = new TLV(data, childoffset, end, false, lazy, nested,
+					nestedBase);
+			list.add(child);
+			childoffset += child.getLength();
 		}
-		return ret;
+		return Collections.unmodifiableList(list);
 	}
 
 	/**
-	 * Returns a copy of the header of this TLV
+	 * Returns the children of this composed TLV, decoding them first if this
+	 * is a lazy TLV which was not accessed yet. Safe to be called
+	 * concurrently: The children are decoded only once.
 	 * 
-	 * @return copy of the header.
+	 * @return unmodifiable list of the children.
 	 */
-	public byte[] getHeader() {
-		return Arrays.copyOf(header, header.length);
+	private List<TLV> children() {
+		List<TLV> ret = children;
+		if (ret == null) {
+			synchronized (this) {
+				ret = children;
+				if (ret == null) {
+					ret = decodeChildren();
+					children = ret;
+				}
+			}
+		}
+		return ret;
 	}
 
 	/**
-	 * Returns an unmodifiable list containing all children of this TLV
+	 * Creates a view of the TLV-Formatted message at position
+	 * <code>offset</code> in the <code>data</code>-bytearray. In contrast to
+	 * {@link #TLV(byte[], int)} no bytes are copied: The returned TLV and its
+	 * children only hold a reference to <code>data</code> and the offsets of
+	 * their fields. Copies are only made by the methods returning a
+	 * bytearray.
 	 * 
-	 * @return unmodifiable list of the children of this TLV
+	 * <p>
+	 * 
+	 * The caller must not modify the region of <code>data</code> the view
+	 * covers as long as the view is in use, otherwise the behaviour of the
+	 * TLV is undefined.
+	 * 
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message.
+	 * @param offset
+	 *            Start of the TLV-Formatted message in the data-bytearray.
+	 * @return A TLV backed by <code>data</code>.
+	 * @throws IllegalArgumentException
+	 *             If data is <code>null</code> or does not contain a valid
+	 *             TLV at <code>offset</code>.
 	 */
-	public List<TLV> getChildren() {
-		return Collections.unmodifiableList(children);
+	public static TLV wrap(byte[] data, int offset) {
+		return wrap(data, offset, false);
 	}
 
 	/**
-	 * This constructor returns a TLV-Object representing the TLV-Formatted
-	 * message at position <code>offset</code> in the <code>data</code>
-	 * -bytearray.
+	 * Same as {@link #wrap(byte[], int)}, but optionally decodes the children
+	 * lazily, see {@link #TLV(byte[], int, boolean)}.
 	 * 
 	 * @param data
 	 *            Bytearray containing the TLV-Coded message.
 	 * @param offset
 	 *            Start of the TLV-Formatted message in the data-bytearray.
+	 * @param lazy
+	 *            <code>true</code> to decode children on first access.
+	 * @return A TLV backed by <code>data</code>.
 	 * @throws IllegalArgumentException
-	 *             If data
+	 *             If data is <code>null</code> or does not contain a valid
+	 *             TLV at <code>offset</code>.
 	 */
-	public TLV(byte[] data, int offset) {
-		if (data == null) {
-			throw new IllegalArgumentException("Data is not allowed to be null");
+	public static TLV wrap(byte[] data, int offset, boolean lazy) {
+		return new TLV(data, offset, data == null ? 0 : data.length, false,
+				lazy, null, 0);
+	}
+
+	/**
+	 * Returns the length of the Type field starting at <code>offset</code>.
+	 */
+	static int readTypeLength(byte[] data, int offset, int limit) {
+		int i = offset + 1;
+		// Longform
+		if ((data[offset] & IDENTIFIER_MASK) == IDENTIFIER_MASK) {
+			do {
+				if (i >= limit) {
+					throw new IllegalArgumentException(
+							"Type field exceeds the available data");
+				}
+			} while ((data[i++] & 0x80) == 0x80);
 		}
-		if (data.length <= 2 || data.length < 2 + offset) {
+		if (i >= limit) {
 			throw new IllegalArgumentException(
-					"data must at least contain two more bytes after offset");
+					"Length field exceeds the available data");
 		}
+		return i - offset;
+	}
 
-		// Header:
-		// Longform
-		if ((data[offset] & IDENTIFIER_MASK) == IDENTIFIER_MASK) {
-			int i = 1;
+	/**
+	 * Returns the Type field starting at <code>offset</code> as number, or
+	 * {@link #TAG_TOO_LONG} if it does not fit into a long.
+	 */
+	static long readTag(byte[] data, int offset, int typelength) {
+		if (typelength > 8) {
+			return TAG_TOO_LONG;
+		}
+		long ret = 0;
+		for (int i = 0; i < typelength; i++) {
+			ret = (ret << 8) | (data[offset + i] & 0xFF);
+		}
+		return ret;
+	}
 
-			// Case: Just one extention header field present
-			if (data.length < offset + i + 2) {
-				throw new IllegalArgumentException("Data array ");
-			}
+	/**
+	 * Returns the length of the Length field starting at <code>offset</code>.
+	 */
+	static int readLengthLength(byte[] data, int offset, int limit) {
+		int lengthlength = ConverterUtils.getBERLengthFieldLength(data, offset);
+		if (lengthlength > limit - offset) {
+			throw new IllegalArgumentException(
+					"Length field exceeds the available data");
+		}
+		return lengthlength;
+	}
 
-			while ((data[offset + i] & 0x80) == 0x80) {
-				i++;
-				if (data.length < offset + i + 2) {
-					throw new IllegalArgumentException("Data array ");
-				}
-			}
-			// Last Type field
-			i++;
+	/**
+	 * Returns whether the Length field starting at <code>offset</code> is the
+	 * indefinite form.
+	 */
+	static boolean isIndefiniteLength(byte[] data, int offset) {
+		return data[offset] == (byte) LENGTH_MASK;
+	}
 
-			typelength = i;
+	/**
+	 * Returns the length of the contents of an indefinite length TLV starting
+	 * at <code>offset</code>, without the End-of-contents octets, see
+	 * {@link #readIndefiniteValueLength(byte[], int, int, IndefiniteLengths, int)}.
+	 */
+	static int readIndefiniteValueLength(byte[] data, int offset, int limit) {
+		return readIndefiniteValueLength(data, offset, limit, null, 0);
+	}
 
-			// Variable length length...
-			if ((data[offset + i] & LENGTH_MASK) != LENGTH_MASK) {
-				i += 1;
-			} else if ((data[offset + i] ^ LENGTH_MASK) == 0) {
+	/**
+	 * Returns the length of the contents of an indefinite length TLV starting
+	 * at <code>offset</code>, without the End-of-contents octets. Only the
+	 * headers of the contents are read, in a single pass: Definite length
+	 * values are skipped, nested indefinite length values are tracked with a
+	 * depth counter.
+	 * 
+	 * @param nested
+	 *            Receives the value lengths of the nested indefinite length
+	 *            TLVs, or null.
+	 * @param base
+	 *            Index in <code>data</code> the offsets recorded in
+	 *            <code>nested</code> are relative to.
+	 * @throws IllegalArgumentException
+	 *             If the End-of-contents octets are missing before
+	 *             <code>limit</code>.
+	 */
+	static int readIndefiniteValueLength(byte[] data, int offset, int limit,
+			IndefiniteLengths nested, int base) {
+		// Entries in nested of the open nested TLVs
+		int[] open = nested != null ? new int[8] : null;
+		int depth = 0;
+		int i = offset;
+		while (true) {
+			if (limit - i < 2) {
 				throw new IllegalArgumentException(
-						"Infinite length not supported");
-			} else {
-				i += 1 + ((data[offset + i] & 0xFF) ^ LENGTH_MASK);
+						"End-of-contents octets missing");
 			}
-			lengthlength = i - typelength;
-
-			header = new byte[i];
-			System.arraycopy(data, offset, header, 0, header.length);
-		}
-		// Standard form
-		else {
-			int i = 1;
-			typelength = 1;
-			// Variable length length...
-			if ((data[offset + i] & LENGTH_MASK) != LENGTH_MASK) {
-				i += 1;
-			} else if ((data[offset + i] ^ LENGTH_MASK) == 0) {
-				throw new IllegalArgumentException(
-						"Infinite length not supported");
+			if (data[i] == 0 && data[i + 1] == 0) {
+				if (depth == 0) {
+					return i - offset;
+				}
+				depth--;
+				if (nested != null) {
+					nested.end(open[depth], i - base);
+				}
+				i += 2;
+				continue;
+			}
+			int typelength = readTypeLength(data, i, limit);
+			int lengthlength = readLengthLength(data, i + typelength, limit);
+			if (isIndefiniteLength(data, i + typelength)) {
+				if ((data[i] & CONSTRUCTED_MASK) != CONSTRUCTED_MASK) {
+					throw new IllegalArgumentException(
+							"Indefinite length not allowed for primitive TLV");
+				}
+				i += typelength + lengthlength;
+				if (nested != null) {
+					if (depth == open.length) {
+						open = Arrays.copyOf(open, depth * 2);
+					}
+					open[depth] = nested.start(i - base);
+				}
+				depth++;
 			} else {
-				i += 1 + ((data[offset + i] & 0xFF) - LENGTH_MASK);
+				int valuelength = readValueLength(data, i + typelength);
+				if (valuelength > limit - i - typelength - lengthlength) {
+					throw new IllegalArgumentException(
+							"Length of value exceeds the available data");
+				}
+				i += typelength + lengthlength + valuelength;
 			}
-
-			lengthlength = i - typelength;
-			header = new byte[i];
-			System.arraycopy(data, offset, header, 0, header.length);
 		}
+	}
 
-		hasChildren = (header[0] & CONSTRUCTED_MASK) == CONSTRUCTED_MASK;
+	/**
+	 * Decodes the Length field starting at <code>offset</code>. Must not be
+	 * called for the indefinite form.
+	 */
+	static int readValueLength(byte[] data, int offset) {
+		return ConverterUtils.getBERLength(data, offset);
+	}
 
-		// Simple element
-		if (!hasChildren) {
-			children = null;
-			content = new byte[getValueLength()];
-			System.arraycopy(data, offset + header.length, content, 0,
-					getValueLength());
-		}
-		// Element with children
-		else {
-			content = null;
-			children = new ArrayList<TLV>();
-			int childoffset = offset + header.length;
-			while (getValueLength() + offset + header.length > childoffset) {
+	/**
+	 * Returns the length of the byte-representation of this TLV, including
+	 * header and value. The length is computed once while parsing.
+	 * 
+	 * @return Length of this TLV.
+	 */
+	public int getLength() {
+		return typelength + lengthlength + valuelength + (indefinite ? 2 : 0);
+	}
 
-				TLV child = new TLV(data, childoffset);
-				children.add(child);
-				childoffset += child.getLength();
+	/**
+	 * Returns the Type field of this TLV as number: The bytes of the Type
+	 * field, interpreted as big-endian unsigned integer (e.g. the Type field
+	 * <code>9F 38</code> is returned as <code>0x9F38</code>). This number is
+	 * decoded once while parsing.
+	 * 
+	 * @return The Type of this TLV, or {@link #TAG_TOO_LONG} if the Type field
+	 *         is longer than 8 bytes.
+	 */
+	public long getTag() {
+		return tag;
+	}
 
-				if (childoffset > getValueLength() + offset + header.length) {
-					throw new IllegalArgumentException(
-							"Size of children not correct");
-				}
-			}
-		}
+	/**
+	 * Returns the length of the value of this TLV as reported in the TLV
+	 * header. For TLVs using the indefinite length form, this is the length
+	 * of the contents without the terminating End-of-contents octets.
+	 * 
+	 * @return Length of the value.
+	 */
+	public int getValueLength() {
+		return valuelength;
+	}
+
+	/**
+	 * Returns whether this is a composed TLV, i.e. its value consists of
+	 * children.
+	 * 
+	 * @return <code>true</code> if this TLV has children.
+	 */
+	public boolean hasChildren() {
+		return hasChildren;
+	}
+
+	/**
+	 * Returns whether this TLV uses the indefinite length form, i.e. its
+	 * value is terminated by End-of-contents octets (<code>00 00</code>).
+	 * 
+	 * @return <code>true</code> if the length is indefinite.
+	 */
+	public boolean isIndefiniteLength() {
+		return indefinite;
+	}
+
+	/**
+	 * Position of the first Value byte in <code>data</code>.
+	 */
+	private int getValueOffset() {
+		return offset + typelength + lengthlength;
+	}
+
+	/**
+	 * Returns a copy of the content (Value) of this TLV, if this TLV does not
+	 * contain children.
+	 * 
+	 * @return copy of the content.
+	 * @throws IllegalStateException
+	 *             If this TLV has children
+	 */
+	public byte[] getContent() {
+		if (hasChildren)
+			throw new IllegalStateException(
+					"Method cannot be called on a TLV with children");
+		int start = getValueOffset();
+		return Arrays.copyOfRange(data, start, start + valuelength);
+	}
+
+	/**
+	 * Returns a read-only buffer containing the content (Value) of this TLV,
+	 * if this TLV does not contain children. The buffer shares the bytes of
+	 * this TLV, no copy is made. Position of the buffer is 0, limit is the
+	 * length of the value.
+	 * 
+	 * @return read-only buffer of the content.
+	 * @throws IllegalStateException
+	 *             If this TLV has children
+	 */
+	public ByteBuffer getContentBuffer() {
+		if (hasChildren)
+			throw new IllegalStateException(
+					"Method cannot be called on a TLV with children");
+		return ByteBuffer.wrap(data, getValueOffset(), valuelength).slice()
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a bytearray containing the byte representation of this TLV.
+	 * 
+	 * @return bytearray containing this TLV.
+	 */
+	public byte[] getRaw() {
+		return Arrays.copyOfRange(data, offset, offset + getLength());
+	}
+
+	/**
+	 * Returns a read-only buffer containing the byte representation of this
+	 * TLV. The buffer shares the bytes of this TLV, no copy is made.
+	 * 
+	 * @return read-only buffer of this TLV.
+	 */
+	public ByteBuffer getRawBuffer() {
+		return ByteBuffer.wrap(data, offset, getLength()).slice()
+				.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Writes the byte representation of this TLV into <code>dst</code>,
+	 * starting at <code>dstOffset</code>.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param dstOffset
+	 *            Start of the TLV in <code>dst</code>.
+	 * @return Number of bytes written, equal to {@link #getLength()}.
+	 * @throws IndexOutOfBoundsException
+	 *             If the TLV does not fit into <code>dst</code>.
+	 */
+	public int writeRaw(byte[] dst, int dstOffset) {
+		int length = getLength();
+		System.arraycopy(data, offset, dst, dstOffset, length);
+		return length;
+	}
+
+	/**
+	 * Writes the byte representation of this TLV into <code>dst</code> at
+	 * its current position. The position is advanced by the number of bytes
+	 * written.
+	 * 
+	 * @param dst
+	 *            The destination buffer.
+	 * @return Number of bytes written, equal to {@link #getLength()}.
+	 * @throws java.nio.BufferOverflowException
+	 *             If the TLV does not fit into <code>dst</code>.
+	 */
+	public int writeRaw(ByteBuffer dst) {
+		int length = getLength();
+		dst.put(data, offset, length);
+		return length;
+	}
+
+	/**
+	 * Returns a copy of the header of this TLV
+	 * 
+	 * @return copy of the header.
+	 */
+	public byte[] getHeader() {
+		return Arrays.copyOfRange(data, offset, getValueOffset());
+	}
+
+	/**
+	 * Returns an unmodifiable list containing all children of this TLV
+	 * 
+	 * @return unmodifiable list of the children of this TLV
+	 * @throws IllegalStateException
+	 *             If this method was called on a TLV without children.
+	 */
+	public List<TLV> getChildren() {
+		if (!hasChildren)
+			throw new IllegalStateException(
+					"Method cannot be called on a TLV without children");
+		return children();
 	}
 
 	private void addToStringBuilder(StringBuilder sb, int indent) {
 		for (int i = 0; i < indent; i++) {
 			sb.append(" ");
 		}
-		sb.append("H: ").append(bufToString(header, 0, typelength))
+		sb.append("H: ").append(bufToString(data, offset, typelength))
 				.append(", L: ")
-				.append(bufToString(header, typelength, lengthlength));
+				.append(bufToString(data, offset + typelength, lengthlength));
 		if (!hasChildren) {
 			sb.append(" Item (")
-					.append(((header[0] & CLASS_MASK) == CLASS_UNIVERSAL) ? getContentDescription(header[0]
+					.append(((data[offset] & CLASS_MASK) == CLASS_UNIVERSAL) ? getContentDescription(data[offset]
 							& IDENTIFIER_MASK)
 							: "Non-Standard").append("): ")
-					.append(bufToString(content, 0, content.length));
+					.append(bufToString(data, getValueOffset(), valuelength));
 		} else {
 			sb.append(" Sequence (")
-					.append(((header[0] & CLASS_MASK) == CLASS_UNIVERSAL) ? getContentDescription(header[0]
+					.append(((data[offset] & CLASS_MASK) == CLASS_UNIVERSAL) ? getContentDescription(data[offset]
 							& IDENTIFIER_MASK)
 							: "Non-Standard").append("): [\n");
-			for (TLV child : children) {
+			for (TLV child : children()) {
 				child.addToStringBuilder(sb, indent + 1);
 			}
 			for (int i = 0; i < indent; i++) {
@@ -380,23 +798,23 @@ public final class TLV {
 		if (!hasChildren)
 			throw new IllegalStateException(
 					"Method cannot be called on a TLV without children");
-		return children.get(number);
+		return children().get(number);
 	}
 
 	/**
 	 * Get a specific child of this TLV, identified by its Type.
 	 * 
 	 * @param header
-	 *            A bytearray containing the type to search for.
+	 *            A bytearray containing the type to search for (without the
+	 *            length).
 	 * @return Specific child of the current TLV if the type matches the
 	 *         parameter, <code>null</code> otherwise
 	 */
 	public TLV getChildByTag(byte[] header) {
 		TLV ret = null;
 		if (hasChildren) {
-			for (TLV child : children) {
-				if (Arrays.equals(Arrays.copyOf(child.header, child.header.length - 1)
-						, header)) {
+			for (TLV child : children()) {
+				if (child.typeEquals(header)) {
 					return child;
 				}
 			}
@@ -404,30 +822,151 @@ public final class TLV {
 		return ret;
 	}
 
-	private String bufToString(byte[] buf, int start, int len) {
-		StringBuilder s = new StringBuilder();
-		for (int i = 0; i < len; i++) {
-			if (i > 0)
-				s.append(" ");
-			String hex = Integer.toHexString(0xFF & buf[start + i]);
-			if (hex.length() == 1) {
-				s.append('0');
+	/**
+	 * Get a specific child of this TLV, identified by its Type as returned by
+	 * {@link #getTag()} (e.g. <code>0x9F38</code>). No objects are allocated
+	 * by this method.
+	 * 
+	 * @param tag
+	 *            The type to search for.
+	 * @return First child of the current TLV with the given type,
+	 *         <code>null</code> if there is no such child or this TLV has no
+	 *         children.
+	 */
+	public TLV getChildByTag(long tag) {
+		if (hasChildren && tag != TAG_TOO_LONG) {
+			List<TLV> list = children();
+			TagIndex index = tagIndex();
+			if (index != null) {
+				int position = index.first(tag);
+				return position == TagIndex.NONE ? null : list.get(position);
+			}
+			for (int i = 0, size = list.size(); i < size; i++) {
+				TLV child = list.get(i);
+				if (child.tag == tag) {
+					return child;
+				}
 			}
-			s.append(hex);
 		}
-		return s.toString();
+		return null;
+	}
+
+	/**
+	 * Get all children of this TLV with the given Type as returned by
+	 * {@link #getTag()}, ordered by their occurence in the original
+	 * bytearray.
+	 * 
+	 * @param tag
+	 *            The type to search for.
+	 * @return unmodifiable list of the matching children, empty if there is no
+	 *         such child or this TLV has no children.
+	 */
+	public List<TLV> getChildrenByTag(long tag) {
+		if (!hasChildren || tag == TAG_TOO_LONG) {
+			return Collections.emptyList();
+		}
+		List<TLV> list = children();
+		List<TLV> ret = new ArrayList<TLV>(1);
+		TagIndex index = tagIndex();
+		if (index != null) {
+			for (int i = index.first(tag); i != TagIndex.NONE; i = index.next(i)) {
+				ret.add(list.get(i));
+			}
+		} else {
+			for (int i = 0, size = list.size(); i < size; i++) {
+				TLV child = list.get(i);
+				if (child.tag == tag) {
+					ret.add(child);
+				}
+			}
+		}
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Returns the index of the children by Type, building it on the first
+	 * call. Composed TLVs with less than {@link #TAG_INDEX_THRESHOLD} children
+	 * are searched linearly and have no index. Concurrent calls may build the
+	 * index more than once, but all callers see a complete index.
+	 * 
+	 * @return The index, or <code>null</code> if this TLV has too few
+	 *         children.
+	 */
+	private TagIndex tagIndex() {
+		TagIndex ret = tagIndex;
+		if (ret == null) {
+			List<TLV> list = children();
+			if (list.size() < TAG_INDEX_THRESHOLD) {
+				return null;
+			}
+			ret = new TagIndex(list);
+			tagIndex = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Compares the Type field of this TLV to <code>type</code>, without
+	 * copying the header.
+	 */
+	private boolean typeEquals(byte[] type) {
+		if (type == null || type.length != typelength) {
+			return false;
+		}
+		for (int i = 0; i < typelength; i++) {
+			if (data[offset + i] != type[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String bufToString(byte[] buf, int start, int len) {
+		return ConverterUtils.toHexString(buf, start, len,
+				ConverterUtils.HEX_LOWER_CASE | ConverterUtils.HEX_SPACED);
 	}
 
 	/**
 	 * Equals based on the raw bytes which were used to create this TLV-Object.
+	 * The bytes are compared in place, no copies are made.
 	 */
 	@Override
 	public boolean equals(Object obj) {
+		if (obj == this)
+			return true;
 		if (obj == null)
 			return false;
 		if (obj.getClass() != TLV.class)
 			return false;
-		return Arrays.equals(getRaw(), ((TLV) obj).getRaw());
+		TLV other = (TLV) obj;
+		int length = getLength();
+		if (length != other.getLength())
+			return false;
+		if (hash != 0 && other.hash != 0 && hash != other.hash)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (data[offset + i] != other.data[other.offset + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Hashcode based on the raw bytes, consistent with
+	 * {@link #equals(Object)}. Equal to <code>Arrays.hashCode(getRaw())</code>
+	 * and computed only once.
+	 */
+	@Override
+	public int hashCode() {
+		int h = hash;
+		if (h == 0) {
+			h = 1;
+			for (int i = offset, end = offset + getLength(); i < end; i++) {
+				h = 31 * h + data[i];
+			}
+			hash = h;
+		}
+		return h;
 	}
 
 }
@@ -0,0 +1,392 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.fhnw.imvs.util.ConverterUtils;
+
+/**
+ * Builder for BERTLV-Formatted messages. A tree of builders is created with
+ * {@link #primitive(long, byte[])} and {@link #constructed(long)} and then
+ * encoded directly into a bytearray or {@link ByteBuffer} supplied by the
+ * caller.
+ * 
+ * <p>
+ * 
+ * Types are given as numbers as returned by {@link TLV#getTag()}, so long
+ * form Types like <code>0x9F38</code> are supported. Lengths are encoded
+ * using the shortest definite form: The short form for lengths up to 127,
+ * the long form with as few length bytes as possible otherwise.
+ * 
+ * <p>
+ * 
+ * The encoding is done in two linear passes over the tree: The first one
+ * computes the lengths of all values (bottom up), the second one writes the
+ * headers and values (top down). No intermediate arrays are created.
+ * 
+ * <p>
+ * 
+ * Instances of this class are mutable and not thread-safe. Values of
+ * primitive builders are not copied, they must not be modified before the
+ * builder was encoded.
+ */
+public final class TLVBuilder {
+
+	/**
+	 * The Type of this TLV
+	 */
+	private final long tag;
+
+	/**
+	 * Length of the encoded Type
+	 */
+	private final int typelength;
+
+	/**
+	 * If this is a primitive TLV: The array containing the value, null
+	 * otherwise
+	 */
+	private final byte[] value;
+
+	/**
+	 * Start of the value in <code>value</code>
+	 */
+	private final int valueoffset;
+
+	/**
+	 * If this is a composed TLV: The children, null otherwise
+	 */
+	private final List<TLVBuilder> children;
+
+	/**
+	 * Length of the value, computed by {@link #computeValueLength()} for
+	 * composed TLVs
+	 */
+	private int valuelength;
+
+	private TLVBuilder(long tag, byte[] value, int valueoffset,
+			int valuelength, List<TLVBuilder> children) {
+		this.tag = tag;
+		this.typelength = getTypeLength(tag);
+		this.value = value;
+		this.valueoffset = valueoffset;
+		this.valuelength = valuelength;
+		this.children = children;
+	}
+
+	/**
+	 * Creates a builder for a primitive TLV.
+	 * 
+	 * @param tag
+	 *            The Type, the constructed bit must not be set.
+	 * @param value
+	 *            The value, <code>null</code> for an empty value.
+	 * @return The builder.
+	 * @throws IllegalArgumentException
+	 *             If the Type is not a valid primitive Type.
+	 */
+	public static TLVBuilder primitive(long tag, byte[] value) {
+		if (value == null) {
+			value = new byte[0];
+		}
+		return primitive(tag, value, 0, value.length);
+	}
+
+	/**
+	 * Creates a builder for a primitive TLV with a value taken from a region
+	 * of an array.
+	 * 
+	 * @param tag
+	 *            The Type, the constructed bit must not be set.
+	 * @param value
+	 *            The array containing the value.
+	 * @param offset
+	 *            Start of the value in <code>value</code>.
+	 * @param length
+	 *            Length of the value.
+	 * @return The builder.
+	 * @throws IllegalArgumentException
+	 *             If the Type is not a valid primitive Type.
+	 */
+	public static TLVBuilder primitive(long tag, byte[] value, int offset,
+			int length) {
+		if (isConstructed(tag)) {
+			throw new IllegalArgumentException(
+					"Type of a primitive TLV must not have the constructed bit set");
+		}
+		if (offset < 0 || length < 0 || offset + length > value.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		return new TLVBuilder(tag, value, offset, length, null);
+	}
+
+	/**
+	 * Creates a builder for a composed TLV without children.
+	 * 
+	 * @param tag
+	 *            The Type, the constructed bit must be set.
+	 * @return The builder.
+	 * @throws IllegalArgumentException
+	 *             If the Type is not a valid composed Type.
+	 */
+	public static TLVBuilder constructed(long tag) {
+		if (!isConstructed(tag)) {
+			throw new IllegalArgumentException(
+					"Type of a composed TLV must have the constructed bit set");
+		}
+		return new TLVBuilder(tag, null, 0, 0, new ArrayList<TLVBuilder>());
+	}
+
+	/**
+	 * Appends a child to this composed TLV.
+	 * 
+	 * @param child
+	 *            The child.
+	 * @return This builder.
+	 * @throws IllegalStateException
+	 *             If this is a primitive TLV.
+	 */
+	public TLVBuilder add(TLVBuilder child) {
+		if (children == null) {
+			throw new IllegalStateException(
+					"Method cannot be called on a primitive TLV");
+		}
+		if (child == null) {
+			throw new IllegalArgumentException(
+					"Child is not allowed to be null");
+		}
+		children.add(child);
+		return this;
+	}
+
+	/**
+	 * Appends a primitive child to this composed TLV, see
+	 * {@link #primitive(long, byte[])}.
+	 * 
+	 * @param tag
+	 *            The Type of the child.
+	 * @param value
+	 *            The value of the child.
+	 * @return This builder.
+	 */
+	public TLVBuilder add(long tag, byte[] value) {
+		return add(primitive(tag, value));
+	}
+
+	/**
+	 * Returns the length of the encoding of this TLV, including header and
+	 * value.
+	 * 
+	 * @return Length of the encoding.
+	 */
+	public int getLength() {
+		computeValueLength();
+		return getEncodedLength();
+	}
+
+	/**
+	 * Encodes this TLV into a new bytearray.
+	 * 
+	 * @return The encoding.
+	 */
+	public byte[] toByteArray() {
+		byte[] ret = new byte[getLength()];
+		write(ret, 0);
+		return ret;
+	}
+
+	/**
+	 * Encodes this TLV and returns it as {@link TLV}.
+	 * 
+	 * @return The TLV.
+	 */
+	public TLV toTLV() {
+		return TLV.wrap(toByteArray(), 0);
+	}
+
+	/**
+	 * Encodes this TLV into <code>dst</code>, starting at
+	 * <code>offset</code>.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Start of the encoding in <code>dst</code>.
+	 * @return Number of bytes written.
+	 * @throws IndexOutOfBoundsException
+	 *             If the encoding does not fit into <code>dst</code>.
+	 */
+	public int encode(byte[] dst, int offset) {
+		int length = getLength();
+		if (offset < 0 || length > dst.length - offset) {
+			throw new IndexOutOfBoundsException(
+					"Encoding does not fit into the destination");
+		}
+		return write(dst, offset) - offset;
+	}
+
+	/**
+	 * Encodes this TLV into <code>dst</code> at its current position. The
+	 * position is advanced by the number of bytes written.
+	 * 
+	 * @param dst
+	 *            The destination buffer.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException
+	 *             If the encoding does not fit into <code>dst</code>.
+	 */
+	public int encode(ByteBuffer dst) {
+		int length = getLength();
+		if (length > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			write(dst.array(), dst.arrayOffset() + dst.position());
+			dst.position(dst.position() + length);
+		} else {
+			write(dst);
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the given Type.
+	 * 
+	 * @param tag
+	 *            The Type as number, see {@link TLV#getTag()}.
+	 * @return Length of the Type field.
+	 * @throws IllegalArgumentException
+	 *             If the number is not a valid Type.
+	 */
+	public static int getTypeLength(long tag) {
+		int length = Math.max(1, (64 - Long.numberOfLeadingZeros(tag) + 7) / 8);
+		int first = (int) (tag >>> ((length - 1) * 8)) & 0xFF;
+		boolean longform = (first & TLV.IDENTIFIER_MASK) == TLV.IDENTIFIER_MASK;
+		if (longform != (length > 1)) {
+			throw new IllegalArgumentException("Invalid Type: "
+					+ Long.toHexString(tag));
+		}
+		// All but the last subsequent byte must have bit 8 set
+		for (int i = length - 2; i >= 0; i--) {
+			boolean more = ((tag >>> (i * 8)) & 0x80) == 0x80;
+			if (more != (i > 0)) {
+				throw new IllegalArgumentException("Invalid Type: "
+						+ Long.toHexString(tag));
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the given length in the
+	 * shortest definite form.
+	 * 
+	 * @param length
+	 *            The length of a value.
+	 * @return Length of the Length field.
+	 */
+	public static int getLengthFieldLength(int length) {
+		return ConverterUtils.getBERLengthFieldLength(length);
+	}
+
+	/**
+	 * Writes the Type to <code>dst</code>.
+	 * 
+	 * @return Position after the Type.
+	 */
+	private static int writeType(byte[] dst, int offset, long tag,
+			int typelength) {
+		for (int i = typelength - 1; i >= 0; i--) {
+			dst[offset++] = (byte) (tag >>> (i * 8));
+		}
+		return offset;
+	}
+
+	/**
+	 * Writes the length in the shortest definite form to <code>dst</code>.
+	 * 
+	 * @return Position after the Length field.
+	 */
+	private static int writeLength(byte[] dst, int offset, int length) {
+		return ConverterUtils.putBERLength(dst, offset, length);
+	}
+
+	private static boolean isConstructed(long tag) {
+		int length = getTypeLength(tag);
+		return ((tag >>> ((length - 1) * 8)) & TLV.CONSTRUCTED_MASK) == TLV.CONSTRUCTED_MASK;
+	}
+
+	/**
+	 * First pass: Computes the value lengths of this TLV and all composed
+	 * descendants.
+	 * 
+	 * @return The value length of this TLV.
+	 */
+	private int computeValueLength() {
+		if (children != null) {
+			long length = 0;
+			for (int i = 0, size = children.size(); i < size; i++) {
+				TLVBuilder child = children.get(i);
+				child.computeValueLength();
+				length += child.getEncodedLength();
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IllegalStateException("TLV too long");
+			}
+			valuelength = (int) length;
+		}
+		return valuelength;
+	}
+
+	/**
+	 * Length of the encoding, valid after {@link #computeValueLength()}.
+	 */
+	private int getEncodedLength() {
+		return typelength + getLengthFieldLength(valuelength) + valuelength;
+	}
+
+	/**
+	 * Second pass: Writes this TLV, valid after {@link #computeValueLength()}.
+	 * 
+	 * @return Position after this TLV.
+	 */
+	private int write(byte[] dst, int offset) {
+		offset = writeType(dst, offset, tag, typelength);
+		offset = writeLength(dst, offset, valuelength);
+		if (children == null) {
+			System.arraycopy(value, valueoffset, dst, offset, valuelength);
+			return offset + valuelength;
+		}
+		for (int i = 0, size = children.size(); i < size; i++) {
+			offset = children.get(i).write(dst, offset);
+		}
+		return offset;
+	}
+
+	/**
+	 * Second pass for buffers without accessible array.
+	 */
+	private void write(ByteBuffer dst) {
+		for (int i = typelength - 1; i >= 0; i--) {
+			dst.put((byte) (tag >>> (i * 8)));
+		}
+		int lengthlength = getLengthFieldLength(valuelength);
+		if (lengthlength == 1) {
+			dst.put((byte) valuelength);
+		} else {
+			dst.put((byte) (TLV.LENGTH_MASK | (lengthlength - 1)));
+			for (int i = lengthlength - 2; i >= 0; i--) {
+				dst.put((byte) (valuelength >>> (i * 8)));
+			}
+		}
+		if (children == null) {
+			dst.put(value, valueoffset, valuelength);
+			return;
+		}
+		for (int i = 0, size = children.size(); i < size; i++) {
+			children.get(i).write(dst);
+		}
+	}
+}
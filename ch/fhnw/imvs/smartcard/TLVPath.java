@@ -0,0 +1,320 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled path query over trees of {@link TLV}s, e.g.
+ * <code>6F/A5/BF0C/61/4F</code>. A path is compiled once with
+ * {@link #compile(String)} and can then be evaluated any number of times
+ * against parsed TLVs or raw bytes. Instances of this class are immutable
+ * and thread-safe.
+ * 
+ * <p>
+ * 
+ * A path consists of steps separated by <code>/</code>. The first step is
+ * matched against the root TLV, each following step against the children of
+ * the TLVs matched by the previous step. A step is one of:
+ * <ul>
+ * <li>A Type in hexadecimal notation (e.g. <code>9F38</code>), matching TLVs
+ * of this Type, see {@link TLV#getTag()}.
+ * <li><code>*</code>, matching TLVs of any Type.
+ * <li><code>**</code>, matching any number (including zero) of nested levels.
+ * Consecutive <code>**</code> steps are collapsed into one.
+ * </ul>
+ * 
+ * <p>
+ * 
+ * When evaluated against raw bytes, only the headers of the TLVs on the path
+ * are decoded: Subtrees which do not match are skipped using their length,
+ * and only matches are returned as (lazy) {@link TLV} views on the bytes.
+ */
+public final class TLVPath {
+
+	/**
+	 * Step matching TLVs of any Type.
+	 */
+	public static final long ANY = -2;
+
+	/**
+	 * Step matching any number of nested levels.
+	 */
+	public static final long ANY_DEPTH = -3;
+
+	/**
+	 * The steps of the path
+	 */
+	private final long[] steps;
+
+	/**
+	 * Creates a path, collapsing consecutive {@link #ANY_DEPTH} steps: They
+	 * match the same TLVs as a single one, but would return each match once
+	 * for every way of distributing the levels among them.
+	 */
+	private TLVPath(long[] steps) {
+		int n = 0;
+		for (int i = 0; i < steps.length; i++) {
+			if (steps[i] != ANY_DEPTH || n == 0 || steps[n - 1] != ANY_DEPTH) {
+				steps[n++] = steps[i];
+			}
+		}
+		this.steps = n == steps.length ? steps : Arrays.copyOf(steps, n);
+	}
+
+	/**
+	 * Compiles a path given in the notation described in the class
+	 * documentation.
+	 * 
+	 * @param path
+	 *            The path, e.g. <code>6F/A5/BF0C/61/4F</code>.
+	 * @return The compiled path.
+	 * @throws IllegalArgumentException
+	 *             If the path is empty or contains an invalid step.
+	 */
+	public static TLVPath compile(String path) {
+		if (path == null || path.isEmpty()) {
+			throw new IllegalArgumentException("Path must not be empty");
+		}
+		String[] tokens = path.split("/", -1);
+		long[] steps = new long[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			String token = tokens[i].trim();
+			if (token.equals("*")) {
+				steps[i] = ANY;
+			} else if (token.equals("**")) {
+				steps[i] = ANY_DEPTH;
+			} else {
+				try {
+					steps[i] = Long.parseLong(token, 16);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid step \""
+							+ token + "\" in path " + path);
+				}
+				TLVBuilder.getTypeLength(steps[i]);
+			}
+		}
+		return new TLVPath(steps);
+	}
+
+	/**
+	 * Creates a path out of steps given as numbers. Each step is either a
+	 * Type (see {@link TLV#getTag()}), {@link #ANY} or {@link #ANY_DEPTH}.
+	 * 
+	 * @param steps
+	 *            The steps of the path.
+	 * @return The path.
+	 * @throws IllegalArgumentException
+	 *             If no step or an invalid step is given.
+	 */
+	public static TLVPath of(long... steps) {
+		if (steps.length == 0) {
+			throw new IllegalArgumentException("Path must not be empty");
+		}
+		for (long step : steps) {
+			if (step != ANY && step != ANY_DEPTH) {
+				TLVBuilder.getTypeLength(step);
+			}
+		}
+		return new TLVPath(steps.clone());
+	}
+
+	/**
+	 * Returns the first TLV in <code>root</code> matching this path.
+	 * 
+	 * @param root
+	 *            The TLV the first step is matched against.
+	 * @return The first match in document order, <code>null</code> if there
+	 *         is none.
+	 */
+	public TLV first(TLV root) {
+		List<TLV> ret = new ArrayList<TLV>(1);
+		evaluate(root, 0, ret, 1);
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	/**
+	 * Returns all TLVs in <code>root</code> matching this path.
+	 * 
+	 * @param root
+	 *            The TLV the first step is matched against.
+	 * @return unmodifiable list of the matches in document order.
+	 */
+	public List<TLV> all(TLV root) {
+		List<TLV> ret = new ArrayList<TLV>();
+		evaluate(root, 0, ret, Integer.MAX_VALUE);
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Returns the first TLV matching this path in the TLV-Coded bytes. The
+	 * region may contain several top level TLVs, the first step is matched
+	 * against each of them.
+	 * 
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message(s).
+	 * @param offset
+	 *            Start of the messages in <code>data</code>.
+	 * @param length
+	 *            Length of the messages.
+	 * @return The first match as lazy view on <code>data</code> (see
+	 *         {@link TLV#wrap(byte[], int, boolean)}), <code>null</code> if
+	 *         there is none.
+	 * @throws IllegalArgumentException
+	 *             If the part of the data visited is not validly encoded.
+	 */
+	public TLV first(byte[] data, int offset, int length) {
+		List<TLV> ret = new ArrayList<TLV>(1);
+		evaluate(data, offset, offset + length, 0, ret, 1);
+		return ret.isEmpty() ? null : ret.get(0);
+	}
+
+	/**
+	 * Returns all TLVs matching this path in the TLV-Coded bytes, see
+	 * {@link #first(byte[], int, int)}.
+	 * 
+	 * @param data
+	 *            Bytearray containing the TLV-Coded message(s).
+	 * @param offset
+	 *            Start of the messages in <code>data</code>.
+	 * @param length
+	 *            Length of the messages.
+	 * @return unmodifiable list of the matches in document order, as lazy
+	 *         views on <code>data</code>.
+	 * @throws IllegalArgumentException
+	 *             If the part of the data visited is not validly encoded.
+	 */
+	public List<TLV> all(byte[] data, int offset, int length) {
+		List<TLV> ret = new ArrayList<TLV>();
+		evaluate(data, offset, offset + length, 0, ret, Integer.MAX_VALUE);
+		return Collections.unmodifiableList(ret);
+	}
+
+	/**
+	 * Matches <code>node</code> against the steps starting at
+	 * <code>step</code>.
+	 */
+	private void evaluate(TLV node, int step, List<TLV> result, int max) {
+		if (result.size() >= max) {
+			return;
+		}
+		long s = steps[step];
+		if (s == ANY_DEPTH) {
+			// Zero levels
+			if (step + 1 == steps.length) {
+				result.add(node);
+			} else {
+				evaluate(node, step + 1, result, max);
+			}
+			// One or more levels
+			if (node.hasChildren()) {
+				for (TLV child : node.getChildren()) {
+					evaluate(child, step, result, max);
+				}
+			}
+			return;
+		}
+		if (s != ANY && node.getTag() != s) {
+			return;
+		}
+		if (step + 1 == steps.length) {
+			result.add(node);
+		} else if (node.hasChildren()) {
+			for (TLV child : node.getChildren()) {
+				evaluate(child, step + 1, result, max);
+			}
+		}
+	}
+
+	/**
+	 * Matches all TLVs in the region <code>[offset, end)</code> against the
+	 * steps starting at <code>step</code>.
+	 */
+	private void evaluate(byte[] data, int offset, int end, int step,
+			List<TLV> result, int max) {
+		while (offset < end && result.size() < max) {
+			if (end - offset < 2) {
+				throw new IllegalArgumentException(
+						"Size of children not correct");
+			}
+			int typelength = TLV.readTypeLength(data, offset, end);
+			int lengthlength = TLV.readLengthLength(data, offset + typelength,
+					end);
+			int valueoffset = offset + typelength + lengthlength;
+			boolean constructed = (data[offset] & TLV.CONSTRUCTED_MASK) == TLV.CONSTRUCTED_MASK;
+			int valueend;
+			int next;
+			if (TLV.isIndefiniteLength(data, offset + typelength)) {
+				valueend = valueoffset
+						+ TLV.readIndefiniteValueLength(data, valueoffset, end);
+				next = valueend + 2;
+			} else {
+				valueend = valueoffset
+						+ TLV.readValueLength(data, offset + typelength);
+				if (valueend > end || valueend < valueoffset) {
+					throw new IllegalArgumentException(
+							"Length of value exceeds the available data");
+				}
+				next = valueend;
+			}
+			long tag = TLV.readTag(data, offset, typelength);
+			evaluate(data, offset, tag, constructed, valueoffset, valueend,
+					step, result, max);
+			offset = next;
+		}
+	}
+
+	/**
+	 * Matches the TLV at <code>offset</code> against the steps starting at
+	 * <code>step</code>.
+	 */
+	private void evaluate(byte[] data, int offset, long tag,
+			boolean constructed, int valueoffset, int valueend, int step,
+			List<TLV> result, int max) {
+		long s = steps[step];
+		if (s == ANY_DEPTH) {
+			// Zero levels
+			if (step + 1 == steps.length) {
+				result.add(TLV.wrap(data, offset, true));
+			} else {
+				evaluate(data, offset, tag, constructed, valueoffset,
+						valueend, step + 1, result, max);
+			}
+			// One or more levels
+			if (constructed) {
+				evaluate(data, valueoffset, valueend, step, result, max);
+			}
+			return;
+		}
+		if (s != ANY && tag != s) {
+			return;
+		}
+		if (step + 1 == steps.length) {
+			result.add(TLV.wrap(data, offset, true));
+		} else if (constructed) {
+			evaluate(data, valueoffset, valueend, step + 1, result, max);
+		}
+	}
+
+	/**
+	 * Returns the path in the notation of {@link #compile(String)}.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < steps.length; i++) {
+			if (i > 0) {
+				sb.append('/');
+			}
+			if (steps[i] == ANY) {
+				sb.append('*');
+			} else if (steps[i] == ANY_DEPTH) {
+				sb.append("**");
+			} else {
+				sb.append(Long.toHexString(steps[i]).toUpperCase());
+			}
+		}
+		return sb.toString();
+	}
+}
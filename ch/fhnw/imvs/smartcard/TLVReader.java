@@ -0,0 +1,608 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Arrays;
+
+/**
+ * Pull parser reading BERTLV-Formatted messages from an {@link InputStream}
+ * or a {@link ReadableByteChannel}. In contrast to {@link TLV} the message is
+ * not loaded into memory: The reader only keeps a fixed size buffer and the
+ * nesting of the currently open composed TLVs.
+ * 
+ * <p>
+ * 
+ * Each call to {@link #next()} reads the next header and returns an
+ * {@link Event}. For {@link Event#PRIMITIVE} events the value can be read
+ * with one of the <code>readValue</code> methods, or skipped with
+ * {@link #skipValue()}. Values which are neither read nor skipped are skipped
+ * by the next call to {@link #next()}. Skipping does not copy the value to
+ * the heap if the source supports it (<code>InputStream.skip</code> or
+ * {@link SeekableByteChannel}).
+ * 
+ * <p>
+ * 
+ * Both the definite and the indefinite length form are supported. For
+ * composed TLVs of indefinite length, {@link Event#END_CONSTRUCTED} is
+ * returned when the End-of-contents octets were read.
+ * 
+ * <p>
+ * 
+ * Multiple TLVs following each other in the source are read one after the
+ * other, {@link Event#END_DOCUMENT} is returned at the end of the source.
+ * Channels have to be in blocking mode. Instances of this class are not
+ * thread-safe.
+ */
+public final class TLVReader implements Closeable {
+
+	/**
+	 * Events returned by {@link TLVReader#next()}.
+	 */
+	public enum Event {
+		/**
+		 * The header of a composed TLV was read. The following events are its
+		 * children, up to the matching {@link #END_CONSTRUCTED}.
+		 */
+		START_CONSTRUCTED,
+		/**
+		 * The header of a primitive TLV was read. The value is ready to be
+		 * read or skipped.
+		 */
+		PRIMITIVE,
+		/**
+		 * The end of a composed TLV was reached.
+		 */
+		END_CONSTRUCTED,
+		/**
+		 * The end of the source was reached.
+		 */
+		END_DOCUMENT
+	}
+
+	/**
+	 * Default size of the read buffer
+	 */
+	private static final int DEFAULT_BUFFER_SIZE = 512;
+
+	/**
+	 * Minimal size of the read buffer, enough for all headers with a Type of
+	 * up to 8 bytes.
+	 */
+	private static final int MINIMAL_BUFFER_SIZE = 16;
+
+	/**
+	 * Source if reading from a stream, null otherwise
+	 */
+	private final InputStream in;
+
+	/**
+	 * Source if reading from a channel, null otherwise
+	 */
+	private final ReadableByteChannel channel;
+
+	/**
+	 * Read buffer, always in read mode (position: next unread byte, limit:
+	 * end of the read bytes)
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Number of bytes of the source consumed so far (not including bytes in
+	 * the buffer which were not consumed yet)
+	 */
+	private long position;
+
+	/**
+	 * Returned by {@link #getValueLength()} for composed TLVs using the
+	 * indefinite length form.
+	 */
+	public static final int INDEFINITE_LENGTH = -1;
+
+	/**
+	 * Positions at which the open composed TLVs end. For TLVs of indefinite
+	 * length: The end of the enclosing TLV of definite length.
+	 */
+	private long[] ends = new long[8];
+
+	/**
+	 * Types of the open composed TLVs
+	 */
+	private long[] tags = new long[8];
+
+	/**
+	 * Value lengths of the open composed TLVs
+	 */
+	private int[] lengths = new int[8];
+
+	/**
+	 * Number of open composed TLVs
+	 */
+	private int depth;
+
+	/**
+	 * Last event returned by {@link #next()}
+	 */
+	private Event event;
+
+	/**
+	 * Type of the current TLV
+	 */
+	private long tag;
+
+	/**
+	 * Length of the value of the current TLV
+	 */
+	private int valuelength;
+
+	/**
+	 * Bytes of the value of the current primitive TLV not read yet
+	 */
+	private int valueremaining;
+
+	/**
+	 * Creates a reader for the given stream.
+	 * 
+	 * @param in
+	 *            The stream containing the TLV-Coded message(s).
+	 */
+	public TLVReader(InputStream in) {
+		this(in, null, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a reader for the given channel.
+	 * 
+	 * @param channel
+	 *            The channel containing the TLV-Coded message(s).
+	 * @throws IllegalArgumentException
+	 *             If the channel is in non-blocking mode.
+	 */
+	public TLVReader(ReadableByteChannel channel) {
+		this(null, channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a reader for the given channel, using a buffer of the given
+	 * size.
+	 * 
+	 * @param channel
+	 *            The channel containing the TLV-Coded message(s).
+	 * @param bufferSize
+	 *            Size of the read buffer in bytes, at least 16.
+	 * @throws IllegalArgumentException
+	 *             If the channel is in non-blocking mode.
+	 */
+	public TLVReader(ReadableByteChannel channel, int bufferSize) {
+		this(null, channel, bufferSize);
+	}
+
+	private TLVReader(InputStream in, ReadableByteChannel channel,
+			int bufferSize) {
+		if (in == null && channel == null) {
+			throw new IllegalArgumentException(
+					"Source is not allowed to be null");
+		}
+		if (isNonBlocking(channel)) {
+			throw new IllegalArgumentException(
+					"Channel must be in blocking mode");
+		}
+		if (bufferSize < MINIMAL_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Buffer size must be at least "
+					+ MINIMAL_BUFFER_SIZE);
+		}
+		this.in = in;
+		this.channel = channel;
+		buffer = ByteBuffer.allocate(bufferSize);
+		buffer.flip();
+	}
+
+	/**
+	 * Reads the next header (skipping the rest of the current value if
+	 * necessary) and returns the corresponding event.
+	 * 
+	 * @return The next event.
+	 * @throws EOFException
+	 *             If the source ends inside of a TLV.
+	 * @throws IOException
+	 *             If the source cannot be read or does not contain a valid
+	 *             TLV.
+	 */
+	public Event next() throws IOException {
+		if (event == Event.END_DOCUMENT) {
+			return event;
+		}
+		if (valueremaining > 0) {
+			skipValue();
+		}
+
+		if (depth > 0) {
+			boolean end;
+			if (lengths[depth - 1] == INDEFINITE_LENGTH) {
+				requireHeader(2);
+				end = peek(0) == 0 && peek(1) == 0;
+				if (end) {
+					if (position + 2 > ends[depth - 1]) {
+						throw new IOException("Size of children not correct");
+					}
+					consume(2);
+				}
+			} else {
+				end = position == ends[depth - 1];
+			}
+			if (end) {
+				depth--;
+				tag = tags[depth];
+				valuelength = lengths[depth];
+				event = Event.END_CONSTRUCTED;
+				return event;
+			}
+		}
+
+		if (!ensure(1)) {
+			if (depth > 0) {
+				throw new EOFException("Source ends inside of a TLV");
+			}
+			event = Event.END_DOCUMENT;
+			return event;
+		}
+
+		// Type
+		int typelength = 1;
+		if ((peek(0) & TLV.IDENTIFIER_MASK) == TLV.IDENTIFIER_MASK) {
+			do {
+				typelength++;
+				requireHeader(typelength);
+			} while ((peek(typelength - 1) & 0x80) == 0x80);
+		}
+
+		// Length
+		requireHeader(typelength + 1);
+		int first = peek(typelength) & 0xFF;
+		if ((first & TLV.LENGTH_MASK) == TLV.LENGTH_MASK) {
+			requireHeader(typelength + 1 + Math.min(first ^ TLV.LENGTH_MASK, 4));
+		}
+
+		// The buffer is not refilled below, so the header stays in place
+		byte[] array = buffer.array();
+		int start = buffer.arrayOffset() + buffer.position();
+		boolean constructed = (array[start] & TLV.CONSTRUCTED_MASK) == TLV.CONSTRUCTED_MASK;
+		int lengthlength;
+		try {
+			lengthlength = TLV.readLengthLength(array, start + typelength,
+					start + buffer.remaining());
+			if (!TLV.isIndefiniteLength(array, start + typelength)) {
+				valuelength = TLV.readValueLength(array, start + typelength);
+			} else if (constructed) {
+				valuelength = INDEFINITE_LENGTH;
+			} else {
+				throw new IOException(
+						"Indefinite length not allowed for primitive TLV");
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		tag = TLV.readTag(array, start, typelength);
+
+		int headerlength = typelength + lengthlength;
+		consume(headerlength);
+
+		// End of the enclosing TLV with definite length
+		long limit = depth > 0 ? ends[depth - 1] : Long.MAX_VALUE;
+		long needed = valuelength == INDEFINITE_LENGTH ? 2 : valuelength;
+		if (position + needed > limit) {
+			throw new IOException("Size of children not correct");
+		}
+
+		if (constructed) {
+			if (depth == ends.length) {
+				ends = Arrays.copyOf(ends, depth * 2);
+				tags = Arrays.copyOf(tags, depth * 2);
+				lengths = Arrays.copyOf(lengths, depth * 2);
+			}
+			ends[depth] = valuelength == INDEFINITE_LENGTH ? limit : position
+					+ valuelength;
+			tags[depth] = tag;
+			lengths[depth] = valuelength;
+			depth++;
+			event = Event.START_CONSTRUCTED;
+		} else {
+			valueremaining = valuelength;
+			event = Event.PRIMITIVE;
+		}
+		return event;
+	}
+
+	/**
+	 * Returns the last event returned by {@link #next()}.
+	 * 
+	 * @return The current event, <code>null</code> before the first call to
+	 *         {@link #next()}.
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * Returns the Type of the current TLV as number, see {@link TLV#getTag()}.
+	 * For {@link Event#END_CONSTRUCTED} this is the Type of the composed TLV
+	 * which ended.
+	 * 
+	 * @return The Type of the current TLV.
+	 */
+	public long getTag() {
+		return tag;
+	}
+
+	/**
+	 * Returns the length of the value of the current TLV as reported in its
+	 * header. For {@link Event#END_CONSTRUCTED} this is the length of the
+	 * composed TLV which ended.
+	 * 
+	 * @return Length of the value, or {@link #INDEFINITE_LENGTH} for composed
+	 *         TLVs using the indefinite length form.
+	 */
+	public int getValueLength() {
+		return valuelength;
+	}
+
+	/**
+	 * Returns the number of composed TLVs the current position is nested in.
+	 * For {@link Event#START_CONSTRUCTED} this includes the TLV just started.
+	 * 
+	 * @return Nesting depth.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Returns the number of bytes of the value of the current primitive TLV
+	 * not read yet.
+	 * 
+	 * @return Remaining bytes of the value.
+	 */
+	public int getRemainingValueLength() {
+		return valueremaining;
+	}
+
+	/**
+	 * Reads the remaining value of the current primitive TLV into a new
+	 * bytearray.
+	 * 
+	 * @return The (remaining) value.
+	 * @throws IllegalStateException
+	 *             If the current event is not {@link Event#PRIMITIVE}.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public byte[] readValue() throws IOException {
+		checkPrimitive();
+		byte[] ret = new byte[valueremaining];
+		int off = 0;
+		while (off < ret.length) {
+			off += readValue(ret, off, ret.length - off);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads up to <code>len</code> bytes of the value of the current
+	 * primitive TLV into <code>dst</code>.
+	 * 
+	 * @param dst
+	 *            Destination array.
+	 * @param off
+	 *            Start offset in <code>dst</code>.
+	 * @param len
+	 *            Maximal number of bytes to read.
+	 * @return Number of bytes read, <code>-1</code> if the whole value was
+	 *         read already.
+	 * @throws IllegalStateException
+	 *             If the current event is not {@link Event#PRIMITIVE}.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public int readValue(byte[] dst, int off, int len) throws IOException {
+		checkPrimitive();
+		if (valueremaining == 0) {
+			return -1;
+		}
+		len = Math.min(len, valueremaining);
+		if (len == 0) {
+			return 0;
+		}
+		int n;
+		if (buffer.hasRemaining()) {
+			n = Math.min(len, buffer.remaining());
+			buffer.get(dst, off, n);
+		} else if (in != null) {
+			n = in.read(dst, off, len);
+		} else {
+			n = channel.read(ByteBuffer.wrap(dst, off, len));
+		}
+		if (n < 0) {
+			throw new EOFException("Source ends inside of a TLV");
+		}
+		position += n;
+		valueremaining -= n;
+		return n;
+	}
+
+	/**
+	 * Reads as much of the value of the current primitive TLV as fits into
+	 * <code>dst</code>.
+	 * 
+	 * @param dst
+	 *            Destination buffer.
+	 * @return Number of bytes read, <code>-1</code> if the whole value was
+	 *         read already.
+	 * @throws IllegalStateException
+	 *             If the current event is not {@link Event#PRIMITIVE}.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public int readValue(ByteBuffer dst) throws IOException {
+		checkPrimitive();
+		if (valueremaining == 0) {
+			return -1;
+		}
+		int len = Math.min(dst.remaining(), valueremaining);
+		int total = 0;
+		while (total < len) {
+			int n;
+			if (buffer.hasRemaining()) {
+				n = Math.min(len - total, buffer.remaining());
+				ByteBuffer src = buffer.duplicate();
+				src.limit(src.position() + n);
+				dst.put(src);
+				buffer.position(buffer.position() + n);
+			} else if (!fill()) {
+				throw new EOFException("Source ends inside of a TLV");
+			} else {
+				continue;
+			}
+			position += n;
+			valueremaining -= n;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Skips the remaining value of the current primitive TLV.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the current event is not {@link Event#PRIMITIVE}.
+	 * @throws IOException
+	 *             If the source cannot be read.
+	 */
+	public void skipValue() throws IOException {
+		checkPrimitive();
+		int n = Math.min(valueremaining, buffer.remaining());
+		consume(n);
+		valueremaining -= n;
+
+		if (valueremaining > 0 && channel instanceof SeekableByteChannel) {
+			SeekableByteChannel seekable = (SeekableByteChannel) channel;
+			long target = seekable.position() + valueremaining;
+			if (target > seekable.size()) {
+				throw new EOFException("Source ends inside of a TLV");
+			}
+			seekable.position(target);
+			position += valueremaining;
+			valueremaining = 0;
+		}
+		while (valueremaining > 0) {
+			long skipped = in != null ? in.skip(valueremaining) : 0;
+			if (skipped <= 0) {
+				// Source does not support skipping: Read through the buffer
+				if (!fill()) {
+					throw new EOFException("Source ends inside of a TLV");
+				}
+				skipped = Math.min(valueremaining, buffer.remaining());
+				buffer.position(buffer.position() + (int) skipped);
+			}
+			position += skipped;
+			valueremaining -= (int) skipped;
+		}
+	}
+
+	/**
+	 * Closes the underlying source.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	private void checkPrimitive() {
+		if (event != Event.PRIMITIVE) {
+			throw new IllegalStateException(
+					"Method can only be called on a primitive TLV");
+		}
+	}
+
+	private byte peek(int i) {
+		return buffer.get(buffer.position() + i);
+	}
+
+	private void consume(int n) {
+		buffer.position(buffer.position() + n);
+		position += n;
+	}
+
+	/**
+	 * Makes sure the current header of <code>n</code> bytes is in the
+	 * buffer.
+	 */
+	private void requireHeader(int n) throws IOException {
+		if (n > buffer.capacity()) {
+			throw new IOException("Header too long");
+		}
+		if (!ensure(n)) {
+			throw new EOFException("Source ends inside of a TLV");
+		}
+	}
+
+	/**
+	 * Reads from the source until at least <code>n</code> bytes are in the
+	 * buffer.
+	 * 
+	 * @return <code>false</code> if the source ended before.
+	 */
+	private boolean ensure(int n) throws IOException {
+		while (buffer.remaining() < n) {
+			if (!fill()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads more bytes from the source into the buffer. Unread bytes are
+	 * moved to the start of the buffer.
+	 * 
+	 * @return <code>false</code> if the source ended.
+	 */
+	private boolean fill() throws IOException {
+		buffer.compact();
+		try {
+			int n;
+			do {
+				if (in != null) {
+					n = in.read(buffer.array(),
+							buffer.arrayOffset() + buffer.position(),
+							buffer.remaining());
+					if (n > 0) {
+						buffer.position(buffer.position() + n);
+					}
+				} else {
+					n = channel.read(buffer);
+					if (n == 0 && isNonBlocking(channel)) {
+						throw new IOException(
+								"Channel was switched to non-blocking mode");
+					}
+				}
+			} while (n == 0);
+			return n > 0;
+		} finally {
+			buffer.flip();
+		}
+	}
+
+	private static boolean isNonBlocking(ReadableByteChannel channel) {
+		return channel instanceof SelectableChannel
+				&& !((SelectableChannel) channel).isBlocking();
+	}
+}
@@ -0,0 +1,99 @@
+package ch.fhnw.imvs.smartcard;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable hash index mapping the Type of the children of a composed
+ * {@link TLV} to their position in the list of children. Uses open addressing
+ * on primitive arrays, so lookups do not allocate. Children with the same
+ * Type are chained in the order of their occurence.
+ */
+final class TagIndex {
+
+	/**
+	 * Marks empty slots and the end of a chain
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * Tag of each slot
+	 */
+	private final long[] tags;
+
+	/**
+	 * Position of the first child with the tag of each slot, or NONE
+	 */
+	private final int[] first;
+
+	/**
+	 * Position of the next child with the same tag for each child, or NONE
+	 */
+	private final int[] next;
+
+	/**
+	 * Number of slots - 1, the number of slots is a power of two
+	 */
+	private final int mask;
+
+	/**
+	 * Builds the index over the given children.
+	 * 
+	 * @param children
+	 *            The children of a composed TLV.
+	 */
+	TagIndex(List<TLV> children) {
+		int size = children.size();
+		int capacity = Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+		tags = new long[capacity];
+		first = new int[capacity];
+		next = new int[size];
+		mask = capacity - 1;
+		Arrays.fill(first, NONE);
+
+		// Insert backwards, so the chains are in ascending order
+		for (int i = size - 1; i >= 0; i--) {
+			long tag = children.get(i).getTag();
+			int slot = slot(tag);
+			next[i] = first[slot];
+			tags[slot] = tag;
+			first[slot] = i;
+		}
+	}
+
+	/**
+	 * Returns the position of the first child with the given tag.
+	 * 
+	 * @param tag
+	 *            The Type to search for.
+	 * @return Position of the child or {@link #NONE}.
+	 */
+	int first(long tag) {
+		return first[slot(tag)];
+	}
+
+	/**
+	 * Returns the position of the next child with the same tag as the child at
+	 * <code>position</code>.
+	 * 
+	 * @param position
+	 *            Position of a child.
+	 * @return Position of the next child or {@link #NONE}.
+	 */
+	int next(int position) {
+		return next[position];
+	}
+
+	/**
+	 * Returns the slot containing the tag or the empty slot where it would be
+	 * inserted.
+	 */
+	private int slot(long tag) {
+		long h = tag * 0x9E3779B97F4A7C15L;
+		int slot = (int) (h ^ (h >>> 32)) & mask;
+		while (first[slot] != NONE && tags[slot] != tag) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
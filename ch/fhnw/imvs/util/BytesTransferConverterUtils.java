@@ -1,53 +1,175 @@
 package ch.fhnw.imvs.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
+/**
+ * Converts lists of bytearrays to a single bytearray for transfer and back.
+ * Each bytearray is written as frame consisting of its length (two bytes,
+ * unsigned big-endian) followed by its content.
+ *
+ * <p>
+ *
+ * Besides the list based methods, the frames can be written directly into a
+ * {@link ByteBuffer} and read lazily as slices of a {@link ByteBuffer}, see
+ * {@link #frames(ByteBuffer)}, or of a channel, see {@link FrameReader}.
+ */
 public class BytesTransferConverterUtils {
 
-	public static byte[] convert(List<byte[]> byteArrays) {
-		try {
-			ByteArrayOutputStream out = new ByteArrayOutputStream();
-			DataOutputStream writeOut = new DataOutputStream(out);
-			
-			for (byte[] bs : byteArrays) {
-				if (bs.length > Short.MAX_VALUE) {
-					throw new IllegalArgumentException("Byte arrays with length greater than " + Short.MAX_VALUE + " not supported.");
-				}
-				writeOut.writeShort(bs.length);
-				writeOut.write(bs);
-			}
+	/**
+	 * Maximum length of a single bytearray
+	 */
+	public static final int MAXIMUM_LENGTH = 0xFFFF;
+
+	/**
+	 * Length of the length prefix of a frame
+	 */
+	public static final int HEADER_LENGTH = 2;
 
-			byte[] buffer = out.toByteArray();
-			writeOut.close();
-			return buffer;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
+	public static byte[] convert(List<byte[]> byteArrays) {
+		byte[] buffer = new byte[getConvertedLength(byteArrays)];
+		int offset = 0;
+		for (int i = 0, size = byteArrays.size(); i < size; i++) {
+			byte[] bs = byteArrays.get(i);
+			offset = ConverterUtils.putShort(buffer, offset, (short) bs.length);
+			System.arraycopy(bs, 0, buffer, offset, bs.length);
+			offset += bs.length;
 		}
+		return buffer;
 	}
 
 	public static List<byte[]> convert(byte[] transferBytes) {
-		try {
-			List<byte[]> byteArrays = new ArrayList<>();
-			ByteArrayInputStream in = new ByteArrayInputStream(transferBytes);
-			DataInputStream readIn = new DataInputStream(in);
-			while (readIn.available() > 2) {
-				short bufferLength = readIn.readShort();
-				byte[] buffer = new byte[bufferLength];
-				readIn.read(buffer);
-				byteArrays.add(buffer);
+		List<byte[]> byteArrays = new ArrayList<>();
+		Iterator<ByteBuffer> frames = frames(ByteBuffer.wrap(transferBytes));
+		while (frames.hasNext()) {
+			ByteBuffer frame = frames.next();
+			byte[] buffer = new byte[frame.remaining()];
+			frame.get(buffer);
+			byteArrays.add(buffer);
+		}
+		return byteArrays;
+	}
+
+	/**
+	 * Returns the exact length of the conversion of <code>byteArrays</code>.
+	 *
+	 * @param byteArrays
+	 *            The bytearrays.
+	 * @return Length of the converted bytes.
+	 * @throws IllegalArgumentException
+	 *             If a bytearray is longer than {@link #MAXIMUM_LENGTH} or
+	 *             the conversion would be longer than
+	 *             <code>Integer.MAX_VALUE</code>.
+	 */
+	public static int getConvertedLength(List<byte[]> byteArrays) {
+		long length = 0;
+		for (int i = 0, size = byteArrays.size(); i < size; i++) {
+			byte[] bs = byteArrays.get(i);
+			if (bs.length > MAXIMUM_LENGTH) {
+				throw new IllegalArgumentException("Byte arrays with length greater than " + MAXIMUM_LENGTH + " not supported.");
 			}
-			return byteArrays;
-		} catch (IOException e) {
-			e.printStackTrace();
-			return null;
+			length += HEADER_LENGTH + bs.length;
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Byte arrays too long");
+		}
+		return (int) length;
+	}
+
+	/**
+	 * Converts <code>byteArrays</code> into <code>dst</code> at its current
+	 * position. The position is advanced by the number of bytes written.
+	 *
+	 * @param byteArrays
+	 *            The bytearrays.
+	 * @param dst
+	 *            The destination buffer.
+	 * @return Number of bytes written.
+	 * @throws BufferOverflowException
+	 *             If the conversion does not fit into <code>dst</code>.
+	 */
+	public static int convert(List<byte[]> byteArrays, ByteBuffer dst) {
+		int length = getConvertedLength(byteArrays);
+		if (length > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		for (int i = 0, size = byteArrays.size(); i < size; i++) {
+			byte[] bs = byteArrays.get(i);
+			putHeader(dst, bs.length);
+			dst.put(bs);
 		}
+		return length;
 	}
 
+	/**
+	 * Writes the length prefix of a frame into <code>dst</code> at its
+	 * current position.
+	 *
+	 * @param dst
+	 *            The destination buffer.
+	 * @param length
+	 *            Length of the content of the frame.
+	 * @throws IllegalArgumentException
+	 *             If <code>length</code> is larger than
+	 *             {@link #MAXIMUM_LENGTH}.
+	 */
+	public static void putHeader(ByteBuffer dst, int length) {
+		if (length < 0 || length > MAXIMUM_LENGTH) {
+			throw new IllegalArgumentException("Byte arrays with length greater than " + MAXIMUM_LENGTH + " not supported.");
+		}
+		dst.put((byte) (length >>> 8));
+		dst.put((byte) length);
+	}
+
+	/**
+	 * Returns the frames between the position and the limit of
+	 * <code>src</code>. The frames are decoded lazily and returned as slices
+	 * of <code>src</code>, no bytes are copied. The position and limit of
+	 * <code>src</code> are not changed.
+	 *
+	 * @param src
+	 *            The converted bytes.
+	 * @return Iterator over the content of the frames.
+	 * @throws IllegalArgumentException
+	 *             (thrown by the iterator) If the bytes end within a frame.
+	 */
+	public static Iterator<ByteBuffer> frames(ByteBuffer src) {
+		final ByteBuffer buffer = src.duplicate();
+		return new Iterator<ByteBuffer>() {
+
+			@Override
+			public boolean hasNext() {
+				return buffer.hasRemaining();
+			}
+
+			@Override
+			public ByteBuffer next() {
+				if (!buffer.hasRemaining()) {
+					throw new NoSuchElementException();
+				}
+				if (buffer.remaining() < HEADER_LENGTH) {
+					throw new IllegalArgumentException("Incomplete frame header");
+				}
+				int length = ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+				if (length > buffer.remaining()) {
+					throw new IllegalArgumentException("Incomplete frame");
+				}
+				int limit = buffer.limit();
+				buffer.limit(buffer.position() + length);
+				ByteBuffer frame = buffer.slice();
+				buffer.position(buffer.limit());
+				buffer.limit(limit);
+				return frame;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
 }
@@ -1,45 +1,486 @@
 package ch.fhnw.imvs.util;
 
-import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 public class ConverterUtils {
 	final protected static char[] HEY_ARRAY = "0123456789ABCDEF".toCharArray();
 
-	public static String toHexString(byte[] bytes) {
-		char[] hexChars = new char[bytes.length * 2];
-		for (int j = 0; j < bytes.length; j++) {
-			int v = bytes[j] & 0xFF;
-			hexChars[j * 2] = HEY_ARRAY[v >>> 4];
-			hexChars[j * 2 + 1] = HEY_ARRAY[v & 0x0F];
+	/**
+	 * Flag for the hex methods: Use lower case digits.
+	 */
+	public static final int HEX_LOWER_CASE = 1;
+
+	/**
+	 * Flag for the hex methods: Separate the bytes by a space.
+	 */
+	public static final int HEX_SPACED = 2;
+
+	/**
+	 * Two upper case digits for each byte
+	 */
+	private static final char[] HEX_PAIRS_UPPER = hexPairs(HEY_ARRAY);
+
+	/**
+	 * Two lower case digits for each byte
+	 */
+	private static final char[] HEX_PAIRS_LOWER = hexPairs("0123456789abcdef"
+			.toCharArray());
+
+	/**
+	 * Value of each ASCII character as hex digit, -1 if not a hex digit
+	 */
+	private static final byte[] HEX_VALUES = new byte[128];
+
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 16; i++) {
+			HEX_VALUES["0123456789ABCDEF".charAt(i)] = (byte) i;
+			HEX_VALUES["0123456789abcdef".charAt(i)] = (byte) i;
+		}
+	}
+
+	private static char[] hexPairs(char[] digits) {
+		char[] pairs = new char[512];
+		for (int i = 0; i < 256; i++) {
+			pairs[i * 2] = digits[i >>> 4];
+			pairs[i * 2 + 1] = digits[i & 0x0F];
 		}
+		return pairs;
+	}
+
+	public static String toHexString(byte[] bytes) {
+		return toHexString(bytes, 0, bytes.length, 0);
+	}
+
+	/**
+	 * Converts a region of a bytearray to a hex string.
+	 * 
+	 * @param bytes
+	 *            The bytearray.
+	 * @param offset
+	 *            Start of the region.
+	 * @param length
+	 *            Length of the region.
+	 * @param flags
+	 *            {@link #HEX_LOWER_CASE} and/or {@link #HEX_SPACED}, 0 for
+	 *            upper case digits without separator.
+	 * @return The hex string.
+	 */
+	public static String toHexString(byte[] bytes, int offset, int length,
+			int flags) {
+		char[] hexChars = new char[getHexLength(length, flags)];
+		toHex(bytes, offset, length, hexChars, 0, flags);
 		return new String(hexChars);
 	}
 
+	/**
+	 * Returns the number of characters needed to convert <code>length</code>
+	 * bytes to hex.
+	 * 
+	 * @param length
+	 *            Number of bytes.
+	 * @param flags
+	 *            {@link #HEX_LOWER_CASE} and/or {@link #HEX_SPACED}.
+	 * @return Number of characters.
+	 */
+	public static int getHexLength(int length, int flags) {
+		if (length <= 0) {
+			return 0;
+		}
+		return (flags & HEX_SPACED) != 0 ? length * 3 - 1 : length * 2;
+	}
+
+	/**
+	 * Converts a region of a bytearray to hex, writing the digits into
+	 * <code>dst</code> starting at <code>dstOffset</code>.
+	 * 
+	 * @param src
+	 *            The bytearray.
+	 * @param offset
+	 *            Start of the region.
+	 * @param length
+	 *            Length of the region.
+	 * @param dst
+	 *            The destination array.
+	 * @param dstOffset
+	 *            Start of the digits in <code>dst</code>.
+	 * @param flags
+	 *            {@link #HEX_LOWER_CASE} and/or {@link #HEX_SPACED}.
+	 * @return Number of characters written, see
+	 *         {@link #getHexLength(int, int)}.
+	 * @throws IndexOutOfBoundsException
+	 *             If the region is not inside of <code>src</code> or the
+	 *             digits do not fit into <code>dst</code>.
+	 */
+	public static int toHex(byte[] src, int offset, int length, char[] dst,
+			int dstOffset, int flags) {
+		int hexLength = getHexLength(length, flags);
+		if (offset < 0 || length < 0 || offset + length > src.length
+				|| dstOffset < 0 || hexLength > dst.length - dstOffset) {
+			throw new IndexOutOfBoundsException();
+		}
+		char[] pairs = (flags & HEX_LOWER_CASE) != 0 ? HEX_PAIRS_LOWER
+				: HEX_PAIRS_UPPER;
+		int end = offset + length;
+		int pos = dstOffset;
+		if ((flags & HEX_SPACED) == 0) {
+			for (int i = offset; i < end; i++) {
+				int v = (src[i] & 0xFF) << 1;
+				dst[pos++] = pairs[v];
+				dst[pos++] = pairs[v + 1];
+			}
+		} else {
+			for (int i = offset; i < end; i++) {
+				if (i > offset) {
+					dst[pos++] = ' ';
+				}
+				int v = (src[i] & 0xFF) << 1;
+				dst[pos++] = pairs[v];
+				dst[pos++] = pairs[v + 1];
+			}
+		}
+		return hexLength;
+	}
+
+	/**
+	 * Converts a region of a bytearray to hex, writing the digits into
+	 * <code>dst</code> at its current position. The position is advanced by
+	 * the number of characters written.
+	 * 
+	 * @param src
+	 *            The bytearray.
+	 * @param offset
+	 *            Start of the region.
+	 * @param length
+	 *            Length of the region.
+	 * @param dst
+	 *            The destination buffer.
+	 * @param flags
+	 *            {@link #HEX_LOWER_CASE} and/or {@link #HEX_SPACED}.
+	 * @return Number of characters written.
+	 * @throws BufferOverflowException
+	 *             If the digits do not fit into <code>dst</code>.
+	 */
+	public static int toHex(byte[] src, int offset, int length,
+			CharBuffer dst, int flags) {
+		int hexLength = getHexLength(length, flags);
+		if (hexLength > dst.remaining()) {
+			throw new BufferOverflowException();
+		}
+		if (dst.hasArray()) {
+			toHex(src, offset, length, dst.array(),
+					dst.arrayOffset() + dst.position(), flags);
+			dst.position(dst.position() + hexLength);
+		} else {
+			char[] hexChars = new char[hexLength];
+			toHex(src, offset, length, hexChars, 0, flags);
+			dst.put(hexChars);
+		}
+		return hexLength;
+	}
+
+	/**
+	 * Converts a hex string to a bytearray. Upper and lower case digits are
+	 * accepted, whitespace between the bytes is ignored.
+	 * 
+	 * @param hex
+	 *            The hex string, e.g. <code>"00A4 0400"</code>.
+	 * @return The bytes.
+	 * @throws IllegalArgumentException
+	 *             If the string contains invalid characters or an odd
+	 *             number of digits.
+	 */
+	public static byte[] fromHexString(CharSequence hex) {
+		int end = hex.length();
+		int digits = 0;
+		for (int i = 0; i < end; i++) {
+			if (!isHexSeparator(hex.charAt(i))) {
+				digits++;
+			}
+		}
+		byte[] ret = new byte[digits / 2];
+		fromHex(hex, 0, end, ret, 0);
+		return ret;
+	}
+
+	/**
+	 * Converts the hex digits in <code>hex[start, end)</code> to bytes,
+	 * writing them into <code>dst</code> starting at <code>dstOffset</code>.
+	 * Upper and lower case digits are accepted, whitespace between the bytes
+	 * is ignored. A {@link CharBuffer} (e.g. wrapping a <code>char[]</code>)
+	 * can be used as source.
+	 * 
+	 * @param hex
+	 *            The characters.
+	 * @param start
+	 *            Start of the digits in <code>hex</code>.
+	 * @param end
+	 *            End of the digits in <code>hex</code>.
+	 * @param dst
+	 *            The destination array.
+	 * @param dstOffset
+	 *            Start of the bytes in <code>dst</code>.
+	 * @return Number of bytes written.
+	 * @throws IllegalArgumentException
+	 *             If the region contains invalid characters or an odd
+	 *             number of digits.
+	 * @throws IndexOutOfBoundsException
+	 *             If the bytes do not fit into <code>dst</code>.
+	 */
+	public static int fromHex(CharSequence hex, int start, int end,
+			byte[] dst, int dstOffset) {
+		int pos = dstOffset;
+		int i = start;
+		while (i < end) {
+			char c = hex.charAt(i);
+			if (isHexSeparator(c)) {
+				i++;
+				continue;
+			}
+			if (i + 1 >= end) {
+				throw new IllegalArgumentException("Odd number of hex digits");
+			}
+			int high = hexValue(c);
+			int low = hexValue(hex.charAt(i + 1));
+			if ((high | low) < 0) {
+				throw new IllegalArgumentException("Invalid hex digits at "
+						+ i);
+			}
+			dst[pos++] = (byte) ((high << 4) | low);
+			i += 2;
+		}
+		return pos - dstOffset;
+	}
+
+	private static int hexValue(char c) {
+		return c < 128 ? HEX_VALUES[c] : -1;
+	}
+
+	private static boolean isHexSeparator(char c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
 	public static String toHexString(short number) {
 		byte[] bytes = toByteArray(number);
 		return toHexString(bytes);
 	}
 
 	public static byte[] toByteArray(short number) {
-		ByteBuffer responseBodyBuffer = ByteBuffer.allocate(2);
-		responseBodyBuffer.putShort(number);
-		return responseBodyBuffer.array();
+		byte[] ret = new byte[2];
+		putShort(ret, 0, number);
+		return ret;
 	}
 
 	public static byte[] toByteArray(int number) {
-		ByteBuffer responseBodyBuffer = ByteBuffer.allocate(4);
-		responseBodyBuffer.putInt(number);
-		return responseBodyBuffer.array();
+		byte[] ret = new byte[4];
+		putInt(ret, 0, number);
+		return ret;
 	}
 
 	public static short toShort(byte[] number) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(number);
-		return byteBuffer.getShort();
+		return getShort(number, 0);
 	}
 
 	public static int toInt(byte[] number) {
-		ByteBuffer byteBuffer = ByteBuffer.wrap(number);
-		return byteBuffer.getInt();
+		return getInt(number, 0);
+	}
+
+	/**
+	 * Writes a short in big-endian order.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Position of the first byte in <code>dst</code>.
+	 * @param value
+	 *            The value.
+	 * @return Position after the value.
+	 */
+	public static int putShort(byte[] dst, int offset, short value) {
+		dst[offset + 1] = (byte) value;
+		dst[offset] = (byte) (value >> 8);
+		return offset + 2;
+	}
+
+	/**
+	 * Reads a short in big-endian order.
+	 * 
+	 * @param src
+	 *            The source array.
+	 * @param offset
+	 *            Position of the first byte in <code>src</code>.
+	 * @return The value.
+	 */
+	public static short getShort(byte[] src, int offset) {
+		return (short) ((src[offset] << 8) | (src[offset + 1] & 0xFF));
+	}
+
+	/**
+	 * Writes an int in big-endian order.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Position of the first byte in <code>dst</code>.
+	 * @param value
+	 *            The value.
+	 * @return Position after the value.
+	 */
+	public static int putInt(byte[] dst, int offset, int value) {
+		dst[offset + 3] = (byte) value;
+		dst[offset + 2] = (byte) (value >> 8);
+		dst[offset + 1] = (byte) (value >> 16);
+		dst[offset] = (byte) (value >> 24);
+		return offset + 4;
+	}
+
+	/**
+	 * Reads an int in big-endian order.
+	 * 
+	 * @param src
+	 *            The source array.
+	 * @param offset
+	 *            Position of the first byte in <code>src</code>.
+	 * @return The value.
+	 */
+	public static int getInt(byte[] src, int offset) {
+		return (src[offset] << 24) | ((src[offset + 1] & 0xFF) << 16)
+				| ((src[offset + 2] & 0xFF) << 8) | (src[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * Writes a long in big-endian order.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Position of the first byte in <code>dst</code>.
+	 * @param value
+	 *            The value.
+	 * @return Position after the value.
+	 */
+	public static int putLong(byte[] dst, int offset, long value) {
+		putInt(dst, offset + 4, (int) value);
+		putInt(dst, offset, (int) (value >> 32));
+		return offset + 8;
+	}
+
+	/**
+	 * Reads a long in big-endian order.
+	 * 
+	 * @param src
+	 *            The source array.
+	 * @param offset
+	 *            Position of the first byte in <code>src</code>.
+	 * @return The value.
+	 */
+	public static long getLong(byte[] src, int offset) {
+		return ((long) getInt(src, offset) << 32)
+				| (getInt(src, offset + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode a length in the shortest
+	 * definite BER form: One byte for lengths up to 127, a byte
+	 * <code>0x8n</code> followed by <code>n</code> length bytes otherwise.
+	 * 
+	 * @param length
+	 *            The length.
+	 * @return Length of the Length field (1 to 5).
+	 * @throws IllegalArgumentException
+	 *             If <code>length</code> is negative.
+	 */
+	public static int getBERLengthFieldLength(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length must not be negative");
+		}
+		if (length < 0x80) {
+			return 1;
+		}
+		return 1 + (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+	}
+
+	/**
+	 * Returns the length of the definite BER Length field starting at
+	 * <code>offset</code>, as given by its first byte.
+	 * 
+	 * @param src
+	 *            The source array.
+	 * @param offset
+	 *            Position of the Length field in <code>src</code>.
+	 * @return Length of the Length field.
+	 * @throws IllegalArgumentException
+	 *             If the Length field has more than four following bytes.
+	 */
+	public static int getBERLengthFieldLength(byte[] src, int offset) {
+		int first = src[offset] & 0xFF;
+		if (first < 0x80) {
+			return 1;
+		}
+		int following = first & 0x7F;
+		if (following > 4) {
+			throw new IllegalArgumentException("Length field too long");
+		}
+		return 1 + following;
+	}
+
+	/**
+	 * Writes a length in the shortest definite BER form, see
+	 * {@link #getBERLengthFieldLength(int)}.
+	 * 
+	 * @param dst
+	 *            The destination array.
+	 * @param offset
+	 *            Position of the Length field in <code>dst</code>.
+	 * @param length
+	 *            The length.
+	 * @return Position after the Length field.
+	 */
+	public static int putBERLength(byte[] dst, int offset, int length) {
+		int lengthlength = getBERLengthFieldLength(length);
+		if (lengthlength == 1) {
+			dst[offset++] = (byte) length;
+			return offset;
+		}
+		dst[offset++] = (byte) (0x80 | (lengthlength - 1));
+		for (int i = lengthlength - 2; i >= 0; i--) {
+			dst[offset++] = (byte) (length >>> (i * 8));
+		}
+		return offset;
+	}
+
+	/**
+	 * Reads a definite BER Length field, see
+	 * {@link #getBERLengthFieldLength(byte[], int)} for its length.
+	 * 
+	 * @param src
+	 *            The source array.
+	 * @param offset
+	 *            Position of the Length field in <code>src</code>.
+	 * @return The length.
+	 * @throws IllegalArgumentException
+	 *             If the field uses the indefinite form, has more than four
+	 *             following bytes or the length does not fit into an int.
+	 */
+	public static int getBERLength(byte[] src, int offset) {
+		int first = src[offset] & 0xFF;
+		if (first < 0x80) {
+			return first;
+		}
+		if (first == 0x80) {
+			throw new IllegalArgumentException("Indefinite length");
+		}
+		int n = getBERLengthFieldLength(src, offset);
+		int length = 0;
+		for (int i = 1; i < n; i++) {
+			length = (length << 8) | (src[offset + i] & 0xFF);
+		}
+		if (length < 0) {
+			throw new IllegalArgumentException("Length not supported");
+		}
+		return length;
 	}
 
 	public static byte[] concatByteArrays(byte[] a, byte[] b) {
@@ -0,0 +1,157 @@
+package ch.fhnw.imvs.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Reads the frames written by {@link BytesTransferConverterUtils} from a
+ * {@link ReadableByteChannel}, one after the other, without building a list.
+ * The channel is read in large blocks into one internal buffer and each
+ * frame is returned as read-only slice of it, so no bytes are copied per
+ * frame. A returned slice is only valid until the next call to
+ * {@link #next()}.
+ *
+ * <p>
+ *
+ * Channels have to be in blocking mode. Instances of this class are not thread-safe.
+ */
+public final class FrameReader implements Closeable {
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final ReadableByteChannel channel;
+
+	/**
+	 * Buffer containing the bytes read but not yet returned between its
+	 * position and limit
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Whether the end of the channel was reached
+	 */
+	private boolean eof;
+
+	/**
+	 * Creates a reader for <code>channel</code>.
+	 *
+	 * @param channel
+	 *            The channel to read from.
+	 * @throws IllegalArgumentException
+	 *             If the channel is in non-blocking mode.
+	 */
+	public FrameReader(ReadableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a reader for <code>channel</code> with a given initial buffer
+	 * size. The buffer grows if a frame does not fit into it.
+	 *
+	 * @param channel
+	 *            The channel to read from.
+	 * @param bufferSize
+	 *            Initial size of the buffer, at least
+	 *            {@link BytesTransferConverterUtils#HEADER_LENGTH}.
+	 * @throws IllegalArgumentException
+	 *             If the channel is in non-blocking mode or the buffer size
+	 *             is too small.
+	 */
+	public FrameReader(ReadableByteChannel channel, int bufferSize) {
+		if (isNonBlocking(channel)) {
+			throw new IllegalArgumentException(
+					"Channel must be in blocking mode");
+		}
+		if (bufferSize < BytesTransferConverterUtils.HEADER_LENGTH) {
+			throw new IllegalArgumentException("Buffer size too small");
+		}
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+		buffer.flip();
+	}
+
+	/**
+	 * Reads the next frame.
+	 *
+	 * @return The content of the frame as read-only buffer, valid until the
+	 *         next call, or <code>null</code> if the end of the channel was
+	 *         reached.
+	 * @throws EOFException
+	 *             If the channel ends within a frame.
+	 * @throws IOException
+	 *             If reading from the channel fails.
+	 */
+	public ByteBuffer next() throws IOException {
+		if (!require(BytesTransferConverterUtils.HEADER_LENGTH)) {
+			if (buffer.hasRemaining()) {
+				throw new EOFException("Incomplete frame header");
+			}
+			return null;
+		}
+		int position = buffer.position();
+		int length = ((buffer.get(position) & 0xFF) << 8)
+				| (buffer.get(position + 1) & 0xFF);
+		int frameLength = BytesTransferConverterUtils.HEADER_LENGTH + length;
+		if (!require(frameLength)) {
+			throw new EOFException("Incomplete frame");
+		}
+		position = buffer.position();
+		ByteBuffer frame = buffer.duplicate();
+		frame.position(position + BytesTransferConverterUtils.HEADER_LENGTH);
+		frame.limit(position + frameLength);
+		buffer.position(position + frameLength);
+		return frame.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads until at least <code>length</code> bytes are available in the
+	 * buffer, compacting or growing it if necessary.
+	 *
+	 * @return <code>false</code> if the channel ended before.
+	 */
+	private boolean require(int length) throws IOException {
+		if (buffer.remaining() >= length) {
+			return true;
+		}
+		if (length > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(length,
+					buffer.capacity() * 2));
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+		// buffer is in write mode here
+		try {
+			while (buffer.position() < length && !eof) {
+				int n = channel.read(buffer);
+				if (n < 0) {
+					eof = true;
+				} else if (n == 0 && isNonBlocking(channel)) {
+					throw new IOException(
+							"Channel was switched to non-blocking mode");
+				}
+			}
+		} finally {
+			buffer.flip();
+		}
+		return buffer.remaining() >= length;
+	}
+
+	private static boolean isNonBlocking(ReadableByteChannel channel) {
+		return channel instanceof SelectableChannel
+				&& !((SelectableChannel) channel).isBlocking();
+	}
+
+	/**
+	 * Closes the underlying channel.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}